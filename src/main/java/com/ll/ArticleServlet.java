@@ -0,0 +1,71 @@
+package com.ll;
+
+import com.ll.simpleDb.QueryTracker;
+import com.ll.simpleDb.SimpleDb;
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.ServletContext;
+import jakarta.servlet.annotation.WebServlet;
+import jakarta.servlet.http.HttpServlet;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+import java.io.IOException;
+
+@WebServlet(value = "/usr/article", asyncSupported = true)
+public class ArticleServlet extends HttpServlet {
+    private static final int QUERY_BUDGET = 20;
+    private SimpleDb simpleDb;
+    private boolean devMode;
+
+    @Override
+    public void init() {
+        ServletContext context = getServletContext();
+        simpleDb = new SimpleDb(
+                initParameter(context, "db.host", "localhost"),
+                initParameter(context, "db.username", "root"),
+                initParameter(context, "db.password", ""),
+                initParameter(context, "db.database", "simpleDb__test"));
+        devMode = Boolean.parseBoolean(initParameter(context, "db.devMode", "false"));
+        simpleDb.setDevMode(devMode);
+    }
+
+    private static String initParameter(ServletContext context, String name, String defaultValue) {
+        String value = context.getInitParameter(name);
+        return value == null ? defaultValue : value;
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) {
+        long id;
+        try {
+            id = Long.parseLong(req.getParameter("id"));
+        } catch (NumberFormatException e) {
+            resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+
+        AsyncContext asyncContext = req.startAsync();
+        try (QueryTracker tracker = QueryTracker.start(QUERY_BUDGET, QueryTracker.BudgetPolicy.WARN)) {
+            simpleDb.runAsync(sql -> sql
+                            .append("SELECT * FROM article WHERE id = ?", id)
+                            .selectRow(Article.class))
+                    .whenComplete((article, e) -> {
+                        HttpServletResponse asyncResp = (HttpServletResponse) asyncContext.getResponse();
+                        if (devMode) asyncResp.setHeader("X-Query-Summary", tracker.summary());
+                        try {
+                            if (e != null) asyncResp.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                            else asyncResp.getWriter().append(String.valueOf(article));
+                        } catch (IOException ioe) {
+                            asyncResp.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+                        } finally {
+                            asyncContext.complete();
+                        }
+                    });
+        }
+    }
+
+    @Override
+    public void destroy() {
+        simpleDb.close();
+    }
+}
@@ -0,0 +1,281 @@
+package com.ll;
+
+import com.ll.simpleDb.PoolStats;
+import com.ll.simpleDb.SQLRuntimeException;
+import com.ll.simpleDb.SimpleDb;
+
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+public class LoadGenerator {
+    enum Operation {
+        INSERT, UPDATE, SELECT_BY_ID, RANGE_SELECT
+    }
+
+    // log-linear buckets: exact below 128ns, then 64 buckets per power of two,
+    // so percentiles are within about 1.6% in the same memory whatever the run length
+    private static class Latencies {
+        private static final int SUB_BUCKET_BITS = 7;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        private static final int HALF = SUB_BUCKETS / 2;
+        private static final int BUCKETS = SUB_BUCKETS + (Long.SIZE - SUB_BUCKET_BITS) * HALF;
+        private final long[] counts = new long[BUCKETS];
+        private long size;
+        private long max;
+        private long errors;
+
+        private static int bucketOf(long nanos) {
+            if (nanos < SUB_BUCKETS) return (int) nanos;
+            int shift = Long.SIZE - Long.numberOfLeadingZeros(nanos) - SUB_BUCKET_BITS;
+            return SUB_BUCKETS + (shift - 1) * HALF + (int) (nanos >>> shift) - HALF;
+        }
+
+        private static long highestValueOf(int bucket) {
+            if (bucket < SUB_BUCKETS) return bucket;
+            int shift = (bucket - SUB_BUCKETS) / HALF + 1;
+            long top = (bucket - SUB_BUCKETS) % HALF + HALF;
+            return ((top + 1) << shift) - 1;
+        }
+
+        private void record(long nanos) {
+            nanos = Math.max(0, nanos);
+            counts[bucketOf(nanos)]++;
+            size++;
+            max = Math.max(max, nanos);
+        }
+
+        private void addAll(Latencies other) {
+            for (int i = 0; i < BUCKETS; i++) counts[i] += other.counts[i];
+            size += other.size;
+            max = Math.max(max, other.max);
+            errors += other.errors;
+        }
+
+        private long percentile(double p) {
+            if (size == 0) return 0;
+            long rank = Math.max(1, (long) Math.ceil(p / 100.0 * size));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts[i];
+                if (seen >= rank) return Math.min(highestValueOf(i), max);
+            }
+            return max;
+        }
+    }
+
+    private final SimpleDb simpleDb;
+    private final Map<Operation, Integer> mix;
+    private final int threads;
+    private final int rate;
+    private final long durationNanos;
+    private final int seedRows;
+    private final AtomicLong maxId;
+
+    public LoadGenerator(SimpleDb simpleDb, Map<Operation, Integer> mix, int threads, int rate, long durationSeconds, int seedRows) {
+        this.simpleDb = simpleDb;
+        this.mix = new EnumMap<>(mix);
+        this.threads = threads;
+        this.rate = rate;
+        this.durationNanos = TimeUnit.SECONDS.toNanos(durationSeconds);
+        this.seedRows = seedRows;
+        this.maxId = new AtomicLong(0);
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        Map<String, String> options = parseOptions(args);
+        SimpleDb simpleDb = new SimpleDb(
+                options.getOrDefault("host", "localhost"),
+                options.getOrDefault("user", "root"),
+                options.getOrDefault("password", ""),
+                options.getOrDefault("database", "simpleDb__test"));
+
+        LoadGenerator loadGenerator = new LoadGenerator(
+                simpleDb,
+                parseMix(options.getOrDefault("mix", "insert=10,update=10,selectById=60,rangeSelect=20")),
+                Integer.parseInt(options.getOrDefault("threads", "16")),
+                Integer.parseInt(options.getOrDefault("rate", "1000")),
+                Long.parseLong(options.getOrDefault("duration", "30")),
+                Integer.parseInt(options.getOrDefault("seedRows", "1000")));
+        try {
+            loadGenerator.prepare();
+            loadGenerator.run();
+        } finally {
+            simpleDb.close();
+        }
+    }
+
+    private static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("="))
+                throw new IllegalArgumentException("Expected --name=value but got " + arg);
+            String[] pair = arg.substring(2).split("=", 2);
+            options.put(pair[0], pair[1]);
+        }
+        return options;
+    }
+
+    private static Map<Operation, Integer> parseMix(String mix) {
+        Map<Operation, Integer> ret = new EnumMap<>(Operation.class);
+        for (String entry : mix.split(",")) {
+            String[] pair = entry.trim().split("=");
+            Operation operation = switch (pair[0]) {
+                case "insert" -> Operation.INSERT;
+                case "update" -> Operation.UPDATE;
+                case "selectById" -> Operation.SELECT_BY_ID;
+                case "rangeSelect" -> Operation.RANGE_SELECT;
+                default -> throw new IllegalArgumentException("Unknown operation " + pair[0]);
+            };
+            ret.put(operation, Integer.parseInt(pair[1]));
+        }
+        return ret;
+    }
+
+    public void prepare() {
+        simpleDb.run("""
+                CREATE TABLE IF NOT EXISTS article (
+                    id INT UNSIGNED NOT NULL AUTO_INCREMENT,
+                    PRIMARY KEY(id),
+                    createdDate DATETIME NOT NULL,
+                    modifiedDate DATETIME NOT NULL,
+                    title VARCHAR(100) NOT NULL,
+                    `body` TEXT NOT NULL,
+                    isBlind BIT(1) NOT NULL DEFAULT 0
+                )
+                """);
+        long count = simpleDb.genSql().append("SELECT COUNT(*) FROM article").selectLong();
+        for (long no = count; no < seedRows; no++) insert();
+        maxId.set(simpleDb.genSql().append("SELECT MAX(id) FROM article").selectLong());
+    }
+
+    public void run() throws InterruptedException {
+        Operation[] schedule = buildSchedule();
+        Latencies[][] results = new Latencies[threads][Operation.values().length];
+        PoolStats[] peak = {simpleDb.getPoolStats()};
+        long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+        long interval = rate > 0 ? TimeUnit.SECONDS.toNanos(1) / rate : 0;
+
+        Thread[] workers = new Thread[threads];
+        for (int w = 0; w < threads; w++) {
+            final int worker = w;
+            for (int o = 0; o < results[w].length; o++) results[w][o] = new Latencies();
+            workers[w] = new Thread(() -> {
+                for (long i = worker; ; i += threads) {
+                    // with a target rate every operation has an intended start time, latency is measured
+                    // from it so that a stalled database also shows up in the operations queued behind
+                    long intended = interval > 0 ? start + i * interval : Math.max(start, System.nanoTime());
+                    if (intended - start >= durationNanos) break;
+                    long now;
+                    while ((now = System.nanoTime()) < intended) LockSupport.parkNanos(intended - now);
+
+                    Operation operation = schedule[(int) (i % schedule.length)];
+                    Latencies latencies = results[worker][operation.ordinal()];
+                    boolean success;
+                    try {
+                        success = execute(operation);
+                    } catch (SQLRuntimeException e) {
+                        success = false;
+                    }
+                    latencies.record(System.nanoTime() - intended);
+                    if (!success) latencies.errors++;
+                }
+            }, "load-" + w);
+            workers[w].start();
+        }
+
+        Thread sampler = new Thread(() -> {
+            while (!Thread.currentThread().isInterrupted()) {
+                PoolStats stats = simpleDb.getPoolStats();
+                if (stats.usedConnections() + stats.pendingRequests() >= peak[0].usedConnections() + peak[0].pendingRequests())
+                    peak[0] = stats;
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }, "load-pool-sampler");
+        sampler.setDaemon(true);
+        sampler.start();
+
+        for (Thread worker : workers) worker.join();
+        long elapsed = System.nanoTime() - start;
+        sampler.interrupt();
+        sampler.join();
+
+        report(results, elapsed, peak[0]);
+    }
+
+    private Operation[] buildSchedule() {
+        List<Operation> schedule = new ArrayList<>();
+        mix.forEach((operation, weight) -> schedule.addAll(Collections.nCopies(weight, operation)));
+        if (schedule.isEmpty()) throw new IllegalArgumentException("Operation mix is empty");
+        Collections.shuffle(schedule);
+        return schedule.toArray(Operation[]::new);
+    }
+
+    private boolean execute(Operation operation) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long id = random.nextLong(1, Math.max(2, maxId.get() + 1));
+        return switch (operation) {
+            case INSERT -> insert();
+            case UPDATE -> simpleDb.genSql()
+                    .append("UPDATE article")
+                    .append("SET modifiedDate = NOW()")
+                    .append(", title = ?", "제목 load")
+                    .append("WHERE id = ?", id)
+                    .update() >= 0;
+            case SELECT_BY_ID -> simpleDb.genSql()
+                    .append("SELECT * FROM article WHERE id = ?", id)
+                    .selectRow(Article.class) != null;
+            case RANGE_SELECT -> simpleDb.genSql()
+                    .append("SELECT * FROM article")
+                    .append("WHERE id BETWEEN ? AND ?", id, id + 20)
+                    .append("ORDER BY id ASC")
+                    .selectRows(Article.class) != null;
+        };
+    }
+
+    private boolean insert() {
+        long newId = simpleDb.genSql()
+                .append("INSERT INTO article")
+                .append("SET createdDate = NOW()")
+                .append(", modifiedDate = NOW()")
+                .append(", title = ?", "제목 load")
+                .append(", body = ?", "내용 load")
+                .insert();
+        maxId.accumulateAndGet(newId, Math::max);
+        return newId > 0;
+    }
+
+    private void report(Latencies[][] results, long elapsedNanos, PoolStats peak) {
+        double seconds = elapsedNanos / 1e9;
+        System.out.printf("threads=%d, rate=%s, duration=%.1fs%n", threads, rate > 0 ? rate + "/s" : "unbounded", seconds);
+        System.out.printf("%-14s %10s %10s %8s %10s %10s %10s %10s %10s%n",
+                "operation", "count", "ops/s", "errors", "p50(ms)", "p90(ms)", "p99(ms)", "p99.9(ms)", "max(ms)");
+
+        Latencies total = new Latencies();
+        for (Operation operation : Operation.values()) {
+            Latencies merged = new Latencies();
+            for (Latencies[] worker : results) merged.addAll(worker[operation.ordinal()]);
+            if (merged.size == 0) continue;
+            total.addAll(merged);
+            printRow(operation.name(), merged, seconds);
+        }
+        printRow("TOTAL", total, seconds);
+
+        System.out.printf("pool peak: used=%d, available=%d, pending=%d, active=%d/%d%n",
+                peak.usedConnections(), peak.availableConnections(), peak.pendingRequests(),
+                peak.activeConnections(), peak.maxPoolSize());
+    }
+
+    private static void printRow(String name, Latencies latencies, double seconds) {
+        System.out.printf("%-14s %10d %10.1f %8d %10.2f %10.2f %10.2f %10.2f %10.2f%n",
+                name, latencies.size, latencies.size / seconds, latencies.errors,
+                latencies.percentile(50) / 1e6, latencies.percentile(90) / 1e6, latencies.percentile(99) / 1e6,
+                latencies.percentile(99.9) / 1e6, latencies.percentile(100) / 1e6);
+    }
+}
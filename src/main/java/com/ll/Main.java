@@ -1,7 +1,13 @@
 package com.ll;
 
+import java.util.Arrays;
+
 public class Main {
-    public static void main(String[] args) {
+    public static void main(String[] args) throws InterruptedException {
+        if (args.length > 0 && args[0].equals("loadtest")) {
+            LoadGenerator.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
         System.out.println("Hello world!");
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,4 @@
+package com.ll.simpleDb;
+
+public record CoalescingStats(long executions, long coalesced, long windowMillis) {
+}
@@ -0,0 +1,129 @@
+package com.ll.simpleDb;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+
+public class CompiledQuery<R> {
+    @FunctionalInterface
+    private interface ParameterSetter {
+        void set(PreparedStatement stmt, int idx, Object value) throws SQLException;
+    }
+
+    private final DBConnectionPool dbConnectionPool;
+    private final int queryTimeout;
+    private final boolean devMode;
+    private final String queryString;
+    private final Class<R> resultType;
+    private final boolean scalar;
+    private final Class<?>[] parameterTypes;
+    private final ParameterSetter[] setters;
+
+    CompiledQuery(DBConnectionPool dbConnectionPool, int queryTimeout, boolean devMode,
+                  Sql sql, Class<R> resultType, Class<?>... parameterTypes) {
+        String queryString = sql.getQueryString();
+        if (!queryString.equals(sql.getQueryShape()))
+            throw new IllegalArgumentException("Compiled query takes its arguments on execution: " + queryString);
+        int slots = slotPositions(queryString).size();
+        if (slots != parameterTypes.length)
+            throw new IllegalArgumentException("Query has %d parameter slots but %d types were given".formatted(slots, parameterTypes.length));
+        if (resultType.isPrimitive())
+            throw new IllegalArgumentException("Use the boxed type instead of " + resultType.getName());
+
+        this.dbConnectionPool = dbConnectionPool;
+        this.queryTimeout = queryTimeout;
+        this.devMode = devMode;
+        this.queryString = queryString;
+        this.resultType = resultType;
+        // java.* results are read from the first column, anything else is mapped as an entity
+        this.scalar = resultType.getPackageName().startsWith("java.");
+        if (!scalar) EntityMapper.of(resultType);
+        this.parameterTypes = new Class<?>[parameterTypes.length];
+        this.setters = new ParameterSetter[parameterTypes.length];
+        for (int i = 0; i < parameterTypes.length; i++) {
+            this.parameterTypes[i] = box(parameterTypes[i]);
+            this.setters[i] = setterFor(this.parameterTypes[i]);
+        }
+    }
+
+    static List<Integer> slotPositions(String queryString) {
+        List<Integer> slots = new ArrayList<>();
+        char quote = 0;
+        for (int i = 0; i < queryString.length(); i++) {
+            char c = queryString.charAt(i);
+            if (quote != 0) {
+                if (c == '\\' && quote != '`') i++;
+                else if (c == quote) quote = 0;
+            } else if (c == '\'' || c == '"' || c == '`') quote = c;
+            else if (c == '?') slots.add(i);
+        }
+        return slots;
+    }
+
+    private static Class<?> box(Class<?> type) {
+        if (!type.isPrimitive()) return type;
+        if (type == long.class) return Long.class;
+        if (type == int.class) return Integer.class;
+        if (type == boolean.class) return Boolean.class;
+        if (type == double.class) return Double.class;
+        throw new IllegalArgumentException("Unsupported parameter type " + type.getName());
+    }
+
+    private static ParameterSetter setterFor(Class<?> type) {
+        if (type == Long.class) return (stmt, idx, value) -> stmt.setLong(idx, (Long) value);
+        if (type == Integer.class) return (stmt, idx, value) -> stmt.setInt(idx, (Integer) value);
+        if (type == Boolean.class) return (stmt, idx, value) -> stmt.setBoolean(idx, (Boolean) value);
+        if (type == Double.class) return (stmt, idx, value) -> stmt.setDouble(idx, (Double) value);
+        if (type == String.class) return (stmt, idx, value) -> stmt.setString(idx, (String) value);
+        return PreparedStatement::setObject;
+    }
+
+    private void bind(PreparedStatement stmt, Object[] args) throws SQLException {
+        for (int i = 0; i < args.length; i++) {
+            if (args[i] == null) stmt.setNull(i + 1, Types.NULL);
+            else setters[i].set(stmt, i + 1, args[i]);
+        }
+    }
+
+    private Sql sql(Object[] args) {
+        if (args.length != parameterTypes.length)
+            throw new IllegalArgumentException("Expected %d arguments but got %d".formatted(parameterTypes.length, args.length));
+        for (int i = 0; i < args.length; i++) {
+            if (args[i] != null && !parameterTypes[i].isInstance(args[i]))
+                throw new IllegalArgumentException("Argument %d must be %s but was %s".formatted(
+                        i + 1, parameterTypes[i].getName(), args[i].getClass().getName()));
+        }
+        return Sql.of(dbConnectionPool, queryTimeout, devMode, queryString, this::bind, args.clone());
+    }
+
+    public String getQueryString() {
+        return queryString;
+    }
+
+    public R selectRow(Object... args) {
+        Sql sql = sql(args);
+        return sql.select("selectRow", scalar ? sql.scalarReader(resultType) : sql.rowReader(resultType));
+    }
+
+    public List<R> selectRows(Object... args) {
+        Sql sql = sql(args);
+        return sql.select("selectRows", scalar ? sql.scalarsReader(resultType) : sql.rowsReader(resultType));
+    }
+
+    // runs on a connection the caller already borrowed, it goes back to the pool afterwards
+    List<R> selectRows(Connection reservedConnection, Object[] args) {
+        Sql sql = sql(args).withReservedConnection(reservedConnection);
+        try {
+            return sql.select("selectRows", scalar ? sql.scalarsReader(resultType) : sql.rowsReader(resultType));
+        } finally {
+            sql.releaseReservedConnection();
+        }
+    }
+
+    public long update(Object... args) {
+        return sql(args).update();
+    }
+}
@@ -0,0 +1,23 @@
+package com.ll.simpleDb;
+
+import jdk.jfr.*;
+
+@Name("com.ll.simpleDb.ConnectionBorrow")
+@Label("Connection Borrow")
+@Description("Borrowing a connection from DBConnectionPool, duration is the time spent waiting")
+@Category({"NuMapper", "Connection Pool"})
+@Enabled(false)
+@StackTrace(false)
+class ConnectionBorrowEvent extends Event {
+    @Label("Async")
+    boolean async;
+
+    @Label("Active Connections")
+    int activeConnections;
+
+    @Label("Available Connections")
+    int availableConnections;
+
+    @Label("Success")
+    boolean success;
+}
@@ -0,0 +1,104 @@
+package com.ll.simpleDb;
+
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+class ConnectionBudget {
+    private final Set<DBConnectionPool> pools;
+    private final Set<DBConnectionPool> starvedPools;
+    private int totalConnections;
+    private int reservedConnections;
+    private int sharedInUse;
+
+    ConnectionBudget(int totalConnections) {
+        this.totalConnections = totalConnections;
+        pools = ConcurrentHashMap.newKeySet();
+        starvedPools = ConcurrentHashMap.newKeySet();
+    }
+
+    void setTotalConnections(int totalConnections) {
+        synchronized (this) {
+            if (totalConnections < reservedConnections)
+                throw new IllegalArgumentException("Budget %d is below the %d guaranteed connections".formatted(totalConnections, reservedConnections));
+            if (totalConnections >= reservedConnections + sharedInUse) {
+                this.totalConnections = totalConnections;
+                return;
+            }
+        }
+        releaseIdleHeadroom(null);
+        synchronized (this) {
+            if (totalConnections < reservedConnections + sharedInUse)
+                throw new IllegalStateException("Budget %d is below the %d connections in use".formatted(totalConnections, reservedConnections + sharedInUse));
+            this.totalConnections = totalConnections;
+        }
+        wakeStarvedPools();
+    }
+
+    void reserve(DBConnectionPool pool, int connections) {
+        synchronized (this) {
+            if (reservedConnections + connections > totalConnections)
+                throw new IllegalStateException("Can not guarantee %d more connections, %d of %d are already reserved"
+                        .formatted(connections, reservedConnections, totalConnections));
+            if (tryReserve(pool, connections)) return;
+        }
+        // headroom the other pools borrowed must be handed back before the new minimum is opened
+        releaseIdleHeadroom(pool);
+        synchronized (this) {
+            if (!tryReserve(pool, connections))
+                throw new IllegalStateException("Can not guarantee %d more connections, %d of %d are borrowed by busy pools"
+                        .formatted(connections, sharedInUse, totalConnections - reservedConnections));
+        }
+    }
+
+    private boolean tryReserve(DBConnectionPool pool, int connections) {
+        if (reservedConnections + sharedInUse + connections > totalConnections) return false;
+        reservedConnections += connections;
+        pools.add(pool);
+        return true;
+    }
+
+    // called without the budget lock, a pool closing its headroom calls back into releaseShared()
+    private void releaseIdleHeadroom(DBConnectionPool except) {
+        for (DBConnectionPool pool : pools) {
+            if (pool != except) pool.releaseIdleHeadroom();
+        }
+    }
+
+    // connections above a pool's guaranteed minimum are borrowed from the headroom shared by all pools
+    boolean tryAcquireShared(DBConnectionPool pool) {
+        synchronized (this) {
+            if (reservedConnections + sharedInUse < totalConnections) {
+                sharedInUse++;
+                return true;
+            }
+            if (!starvedPools.add(pool)) return false;
+        }
+        // idle headroom held by the other pools is handed back so the starved pool can grow
+        for (DBConnectionPool other : pools) {
+            if (other != pool) CompletableFuture.runAsync(other::releaseIdleHeadroom);
+        }
+        return false;
+    }
+
+    void releaseShared() {
+        synchronized (this) {
+            sharedInUse--;
+        }
+        wakeStarvedPools();
+    }
+
+    boolean isStarvedOtherThan(DBConnectionPool pool) {
+        for (DBConnectionPool starved : starvedPools) {
+            if (starved != pool) return true;
+        }
+        return false;
+    }
+
+    // woken on another thread, so a pool never calls into a sibling while holding its own lock
+    private void wakeStarvedPools() {
+        for (DBConnectionPool pool : starvedPools) {
+            if (starvedPools.remove(pool)) CompletableFuture.runAsync(pool::onBudgetAvailable);
+        }
+    }
+}
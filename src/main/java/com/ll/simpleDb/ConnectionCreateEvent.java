@@ -0,0 +1,15 @@
+package com.ll.simpleDb;
+
+import jdk.jfr.*;
+
+@Name("com.ll.simpleDb.ConnectionCreate")
+@Label("Connection Create")
+@Category({"NuMapper", "Connection Pool"})
+@Enabled(false)
+class ConnectionCreateEvent extends Event {
+    @Label("URL")
+    String url;
+
+    @Label("Active Connections")
+    int activeConnections;
+}
@@ -0,0 +1,14 @@
+package com.ll.simpleDb;
+
+import jdk.jfr.*;
+
+@Name("com.ll.simpleDb.ConnectionExpire")
+@Label("Connection Expire")
+@Category({"NuMapper", "Connection Pool"})
+@Enabled(false)
+@StackTrace(false)
+class ConnectionExpireEvent extends Event {
+    @Label("Idle Time")
+    @Timespan(Timespan.MILLISECONDS)
+    long idleTime;
+}
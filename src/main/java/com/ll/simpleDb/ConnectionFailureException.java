@@ -0,0 +1,7 @@
+package com.ll.simpleDb;
+
+public class ConnectionFailureException extends SQLRuntimeException {
+    public ConnectionFailureException(String s, Exception e) {
+        super(s, e);
+    }
+}
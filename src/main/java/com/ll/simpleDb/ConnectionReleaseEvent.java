@@ -0,0 +1,17 @@
+package com.ll.simpleDb;
+
+import jdk.jfr.*;
+
+@Name("com.ll.simpleDb.ConnectionRelease")
+@Label("Connection Release")
+@Category({"NuMapper", "Connection Pool"})
+@Enabled(false)
+@StackTrace(false)
+class ConnectionReleaseEvent extends Event {
+    @Label("Handed Off")
+    @Description("Connection was passed directly to a pending async request")
+    boolean handedOff;
+
+    @Label("Available Connections")
+    int availableConnections;
+}
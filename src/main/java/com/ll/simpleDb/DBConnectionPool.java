@@ -1,10 +1,11 @@
 package com.ll.simpleDb;
 
-import java.sql.Connection;
-import java.sql.DriverManager;
-import java.sql.SQLException;
-import java.sql.SQLTimeoutException;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
 
 public class DBConnectionPool {
@@ -22,6 +23,8 @@ public class DBConnectionPool {
     private static final int DEFAULT_MAX_POOL_SIZE = 10;
     private static final long DEFAULT_WAIT_TIMEOUT = 1000;
     private static final long DEFAULT_MAX_IDLE_TIME = 10000;
+    // server shutdown, connection killed, server has gone away, lost connection during query
+    private static final Set<Integer> FATAL_ERROR_CODES = Set.of(1053, 1927, 2006, 2013);
     private final String url;
     private final String username;
     private final String password;
@@ -29,15 +32,35 @@ public class DBConnectionPool {
     private final int maxPoolSize;
     private final long waitTimeout;
     private final long maxIdleTime;
+    private final ConnectionBudget connectionBudget;
+    private final boolean strictWaitTimeout;
     private final ConcurrentLinkedQueue<ConnectionInfo> availableConnections;
     private final ConcurrentLinkedQueue<Connection> usedConnections;
+    private final ConcurrentLinkedQueue<CompletableFuture<Connection>> pendingRequests;
     private final AtomicInteger activeConnectionCount;
+    private final AtomicInteger generation;
+    private final Map<Connection, Integer> connectionGenerations;
 
     public DBConnectionPool(String url, String username, String password) {
         this(url, username, password, DEFAULT_MIN_POOL_SIZE, DEFAULT_MAX_POOL_SIZE, DEFAULT_WAIT_TIMEOUT, DEFAULT_MAX_IDLE_TIME);
     }
 
     public DBConnectionPool(String url, String username, String password, int minPoolSize, int maxPoolSize, long waitTimeoutMillis, long maxIdleTimeMillis) {
+        this(url, username, password, minPoolSize, maxPoolSize, waitTimeoutMillis, maxIdleTimeMillis, null, false);
+    }
+
+    DBConnectionPool(String url, String username, String password, ConnectionBudget connectionBudget) {
+        this(url, username, password, DEFAULT_MIN_POOL_SIZE, DEFAULT_MAX_POOL_SIZE, DEFAULT_WAIT_TIMEOUT, DEFAULT_MAX_IDLE_TIME, connectionBudget, false);
+    }
+
+    // a partition of a shared budget, borrowers give up after waitTimeoutMillis instead of waiting forever
+    DBConnectionPool(String url, String username, String password, int minPoolSize, int maxPoolSize, long waitTimeoutMillis, ConnectionBudget connectionBudget) {
+        this(url, username, password, minPoolSize, maxPoolSize, waitTimeoutMillis, DEFAULT_MAX_IDLE_TIME, connectionBudget, true);
+    }
+
+    private DBConnectionPool(String url, String username, String password, int minPoolSize, int maxPoolSize, long waitTimeoutMillis,
+                             long maxIdleTimeMillis, ConnectionBudget connectionBudget, boolean strictWaitTimeout) {
+        if (minPoolSize > maxPoolSize) throw new IllegalArgumentException("minPoolSize must not exceed maxPoolSize");
         this.url = url;
         this.username = username;
         this.password = password;
@@ -45,18 +68,28 @@ public class DBConnectionPool {
         this.maxPoolSize = maxPoolSize;
         this.waitTimeout = waitTimeoutMillis;
         this.maxIdleTime = maxIdleTimeMillis;
+        this.connectionBudget = connectionBudget;
+        this.strictWaitTimeout = strictWaitTimeout;
         activeConnectionCount = new AtomicInteger(0);
+        generation = new AtomicInteger(0);
+        connectionGenerations = new ConcurrentHashMap<>();
         availableConnections = new ConcurrentLinkedQueue<>();
         usedConnections = new ConcurrentLinkedQueue<>();
+        pendingRequests = new ConcurrentLinkedQueue<>();
 
+        if (connectionBudget != null) connectionBudget.reserve(this, minPoolSize);
         initializeConnections();
     }
 
     private void initializeConnections() {
         while (activeConnectionCount.get() < minPoolSize) {
-            Connection connection = createConnection();
-            activeConnectionCount.incrementAndGet();
-            availableConnections.offer(new ConnectionInfo(connection));
+            try {
+                Connection connection = createConnection();
+                activeConnectionCount.incrementAndGet();
+                availableConnections.offer(new ConnectionInfo(connection));
+            } catch (SQLException e) {
+                throw new RuntimeException("Create connection failed", e);
+            }
         }
     }
 
@@ -65,18 +98,21 @@ public class DBConnectionPool {
         return idleTime > maxIdleTime;
     }
 
-    private synchronized ConnectionInfo getConnectionFromPool() {
+    private synchronized ConnectionInfo getConnectionFromPool() throws SQLException {
         while (!availableConnections.isEmpty()) {
             ConnectionInfo connectionInfo = availableConnections.poll();
-            if (isExpired(connectionInfo)) closeConnection(connectionInfo.connection);
+            if (isStale(connectionInfo.connection)) discardConnection(connectionInfo.connection);
+            else if (isExpired(connectionInfo)) expireConnection(connectionInfo);
             else return connectionInfo;
         }
 
-        if (activeConnectionCount.get() < maxPoolSize) {
-            Connection connection = createConnection();
-            activeConnectionCount.incrementAndGet();
-            usedConnections.offer(connection);
-            return new ConnectionInfo(connection);
+        if (reserveConnection()) {
+            try {
+                return new ConnectionInfo(createConnection());
+            } catch (SQLException e) {
+                decrementActive();
+                throw e;
+            }
         }
 
         notifyAll();
@@ -84,7 +120,49 @@ public class DBConnectionPool {
         return null;
     }
 
-    private ConnectionInfo waitForConnection() throws InterruptedException, SQLTimeoutException {
+    private boolean reserveConnection() {
+        int active = activeConnectionCount.get();
+        if (active >= maxPoolSize) return false;
+        if (active >= minPoolSize && connectionBudget != null && !connectionBudget.tryAcquireShared(this)) return false;
+        activeConnectionCount.incrementAndGet();
+        return true;
+    }
+
+    private void decrementActive() {
+        if (activeConnectionCount.getAndDecrement() > minPoolSize && connectionBudget != null)
+            connectionBudget.releaseShared();
+    }
+
+    void onBudgetAvailable() {
+        while (servePendingRequest()) {
+            // keep serving while the freed budget lets this pool grow
+        }
+        synchronized (this) {
+            notifyAll();
+        }
+    }
+
+    synchronized void releaseIdleHeadroom() {
+        ConnectionInfo connectionInfo;
+        while (activeConnectionCount.get() > minPoolSize && (connectionInfo = availableConnections.poll()) != null) {
+            closeConnection(connectionInfo.connection);
+        }
+    }
+
+    private void expireConnection(ConnectionInfo connectionInfo) {
+        commitExpireEvent(connectionInfo);
+        closeConnection(connectionInfo.connection);
+    }
+
+    private void commitExpireEvent(ConnectionInfo connectionInfo) {
+        ConnectionExpireEvent event = new ConnectionExpireEvent();
+        if (event.shouldCommit()) {
+            event.idleTime = System.currentTimeMillis() - connectionInfo.timestamp;
+            event.commit();
+        }
+    }
+
+    private ConnectionInfo waitForConnection() throws InterruptedException, SQLException {
         final long start = System.currentTimeMillis();
         long remaining = waitTimeout;
         ConnectionInfo connectionInfo;
@@ -100,15 +178,35 @@ public class DBConnectionPool {
         return connectionInfo;
     }
 
-    private Connection createConnection() {
+    private Connection createConnection() throws SQLException {
+        ConnectionCreateEvent event = new ConnectionCreateEvent();
+        event.begin();
         try {
-            return DriverManager.getConnection(url, username, password);
-        } catch (SQLException e) {
-            throw new RuntimeException("Create connection failed", e);
+            Connection connection = DriverManager.getConnection(url, username, password);
+            connectionGenerations.put(connection, generation.get());
+            return connection;
+        } finally {
+            if (event.shouldCommit()) {
+                event.url = url;
+                event.activeConnections = activeConnectionCount.get();
+                event.commit();
+            }
         }
     }
 
+    private void commitBorrowEvent(ConnectionBorrowEvent event, boolean async, boolean success) {
+        event.end();
+        if (!event.shouldCommit()) return;
+        event.async = async;
+        event.success = success;
+        event.activeConnections = activeConnectionCount.get();
+        event.availableConnections = availableConnections.size();
+        event.commit();
+    }
+
     public Connection getConnection() throws SQLException, InterruptedException {
+        ConnectionBorrowEvent event = new ConnectionBorrowEvent();
+        event.begin();
         ConnectionInfo connectionInfo = null;
         while (connectionInfo == null) {
             synchronized (this) {
@@ -117,7 +215,10 @@ public class DBConnectionPool {
                     try {
                         connectionInfo = waitForConnection();
                     } catch (SQLTimeoutException e) {
-                        // ignore exception
+                        if (strictWaitTimeout) {
+                            commitBorrowEvent(event, false, false);
+                            throw e;
+                        }
                     }
                 }
             }
@@ -127,25 +228,223 @@ public class DBConnectionPool {
         synchronized (this) {
             usedConnections.offer(connection);
         }
+        commitBorrowEvent(event, false, true);
         return connection;
     }
 
-    public synchronized void releaseConnection(Connection connection) {
+    public CompletableFuture<Connection> getConnectionAsync() {
+        return getConnectionAsync(ForkJoinPool.commonPool());
+    }
+
+    // the caller never waits on the network: only an idle connection is handed out under the lock,
+    // a new one is opened and expired ones are closed on the executor
+    CompletableFuture<Connection> getConnectionAsync(Executor executor) {
+        ConnectionBorrowEvent event = new ConnectionBorrowEvent();
+        event.begin();
+        CompletableFuture<Connection> future = new CompletableFuture<>();
+        if (event.isEnabled()) future.whenComplete((connection, e) -> commitBorrowEvent(event, true, e == null));
+        List<Connection> retired = new ArrayList<>();
+        ConnectionInfo connectionInfo;
+        boolean reserved = false;
+        synchronized (this) {
+            connectionInfo = pollIdleConnection(retired);
+            if (connectionInfo != null) usedConnections.offer(connectionInfo.connection);
+            else if (!(reserved = reserveConnection()))
+                pendingRequests.offer(future.orTimeout(waitTimeout, TimeUnit.MILLISECONDS));
+        }
+        if (!retired.isEmpty()) closeLater(retired, executor);
+        if (connectionInfo != null) future.complete(connectionInfo.connection);
+        else if (reserved) openLater(future, executor);
+        return future;
+    }
+
+    // stale and expired connections are only unregistered here, the caller closes them outside the lock
+    private ConnectionInfo pollIdleConnection(List<Connection> retired) {
+        ConnectionInfo connectionInfo;
+        while ((connectionInfo = availableConnections.poll()) != null) {
+            boolean stale = isStale(connectionInfo.connection);
+            if (!stale && !isExpired(connectionInfo)) return connectionInfo;
+            if (!stale) commitExpireEvent(connectionInfo);
+            unregister(connectionInfo.connection);
+            retired.add(connectionInfo.connection);
+        }
+        return null;
+    }
+
+    private void openLater(CompletableFuture<Connection> future, Executor executor) {
+        try {
+            executor.execute(() -> {
+                Connection connection;
+                try {
+                    connection = createConnection();
+                } catch (SQLException e) {
+                    decrementActive();
+                    future.completeExceptionally(e);
+                    return;
+                }
+                synchronized (this) {
+                    usedConnections.offer(connection);
+                }
+                // the borrower may have timed out while the connection was opened
+                if (!future.complete(connection)) releaseConnection(connection);
+            });
+        } catch (RejectedExecutionException e) {
+            decrementActive();
+            future.completeExceptionally(e);
+        }
+    }
+
+    private void closeLater(List<Connection> connections, Executor executor) {
+        Runnable close = () -> connections.forEach(connection -> {
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                // already broken
+            }
+        });
+        try {
+            executor.execute(close);
+        } catch (RejectedExecutionException e) {
+            close.run();
+        }
+    }
+
+    public void releaseConnection(Connection connection) {
+        if (connection == null) return;
+        if (isStale(connection)) {
+            discardConnection(connection);
+            servePendingRequest();
+            return;
+        }
+        CompletableFuture<Connection> pending;
+        synchronized (this) {
+            usedConnections.remove(connection);
+            pending = pollPendingRequest();
+            if (pending == null) {
+                // headroom above the guaranteed minimum goes back to the budget when a sibling pool is starving
+                if (connectionBudget != null && activeConnectionCount.get() > minPoolSize && connectionBudget.isStarvedOtherThan(this)) {
+                    closeConnection(connection);
+                } else {
+                    availableConnections.offer(new ConnectionInfo(connection));
+                    notifyAll();
+                }
+                commitReleaseEvent(false);
+                return;
+            }
+            usedConnections.offer(connection);
+        }
+        commitReleaseEvent(true);
+        // hand over outside the lock, the waiter may have timed out in between
+        if (!pending.complete(connection)) releaseConnection(connection);
+    }
+
+    public void releaseConnection(Connection connection, SQLException failure) {
+        if (connection != null && isFatal(failure)) evictGeneration(connection);
+        releaseConnection(connection);
+    }
+
+    public static boolean isFatal(SQLException e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof SQLNonTransientConnectionException
+                    || t instanceof SQLTransientConnectionException
+                    || t instanceof SQLRecoverableException) return true;
+            if (t instanceof SQLException se) {
+                String sqlState = se.getSQLState();
+                if (sqlState != null && sqlState.startsWith("08")) return true;
+                if (FATAL_ERROR_CODES.contains(se.getErrorCode())) return true;
+            }
+        }
+        return false;
+    }
+
+    // a fatal error on one connection usually means its siblings from the same generation are dead too
+    private synchronized void evictGeneration(Connection connection) {
+        Integer failedGeneration = connectionGenerations.get(connection);
+        if (failedGeneration == null) return;
+        generation.compareAndSet(failedGeneration, failedGeneration + 1);
+        availableConnections.removeIf(connectionInfo -> {
+            if (!isStale(connectionInfo.connection)) return false;
+            discardConnection(connectionInfo.connection);
+            return true;
+        });
+    }
+
+    private boolean isStale(Connection connection) {
+        Integer connectionGeneration = connectionGenerations.get(connection);
+        return connectionGeneration == null || connectionGeneration < generation.get();
+    }
+
+    private synchronized void discardConnection(Connection connection) {
+        unregister(connection);
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            // already broken
+        }
+    }
+
+    private boolean servePendingRequest() {
+        CompletableFuture<Connection> pending;
+        ConnectionInfo connectionInfo;
+        synchronized (this) {
+            pending = pollPendingRequest();
+            if (pending == null) return false;
+            try {
+                connectionInfo = getConnectionFromPool();
+            } catch (SQLException e) {
+                pending.completeExceptionally(e);
+                return false;
+            }
+            if (connectionInfo == null) {
+                pendingRequests.offer(pending);
+                return false;
+            }
+            usedConnections.offer(connectionInfo.connection);
+        }
+        if (!pending.complete(connectionInfo.connection)) releaseConnection(connectionInfo.connection);
+        return true;
+    }
+
+    private void commitReleaseEvent(boolean handedOff) {
+        ConnectionReleaseEvent event = new ConnectionReleaseEvent();
+        if (!event.shouldCommit()) return;
+        event.handedOff = handedOff;
+        event.availableConnections = availableConnections.size();
+        event.commit();
+    }
+
+    private CompletableFuture<Connection> pollPendingRequest() {
+        CompletableFuture<Connection> pending;
+        while ((pending = pendingRequests.poll()) != null) {
+            if (!pending.isDone()) return pending;
+        }
+        return null;
+    }
+
+    private void unregister(Connection connection) {
         usedConnections.remove(connection);
-        availableConnections.offer(new ConnectionInfo(connection));
+        if (connectionGenerations.remove(connection) != null) decrementActive();
     }
 
     private void closeConnection(Connection connection) {
         try {
-            usedConnections.remove(connection);
-            activeConnectionCount.decrementAndGet();
+            unregister(connection);
             connection.close();
         } catch (SQLException e) {
             throw new RuntimeException("Fail to close connection", e);
         }
     }
 
+    public synchronized PoolStats getStats() {
+        return new PoolStats(activeConnectionCount.get(), availableConnections.size(), usedConnections.size(),
+                pendingRequests.size(), maxPoolSize);
+    }
+
     public synchronized void closeAllConnections() {
+        CompletableFuture<Connection> pending;
+        while ((pending = pendingRequests.poll()) != null) {
+            pending.completeExceptionally(new SQLException("Connection pool closed"));
+        }
         for (ConnectionInfo connectionInfo : availableConnections) {
             closeConnection(connectionInfo.connection);
         }
@@ -0,0 +1,122 @@
+package com.ll.simpleDb;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.function.Supplier;
+
+class EntityMapper<R> {
+    private static final ClassValue<EntityMapper<?>> MAPPERS = new ClassValue<>() {
+        @Override
+        protected EntityMapper<?> computeValue(Class<?> type) {
+            return new EntityMapper<>(type);
+        }
+    };
+
+    class Binder {
+        private final int[] columnIndexes;
+        private final int[] lazyKeyIndexes;
+        private final Lazy.Batch[] lazyBatches;
+
+        private Binder(ResultSetMetaData metaData, Supplier<Sql> sqlFactory) throws SQLException {
+            Map<String, Integer> indexByLabel = new HashMap<>();
+            for (int i = metaData.getColumnCount(); i > 0; i--) {
+                indexByLabel.put(metaData.getColumnLabel(i).toLowerCase(), i);
+            }
+
+            columnIndexes = new int[columnFields.length];
+            for (int i = 0; i < columnFields.length; i++) {
+                columnIndexes[i] = indexByLabel.getOrDefault(columnFields[i].getName().toLowerCase(), 0);
+            }
+
+            lazyKeyIndexes = new int[lazyFields.length];
+            lazyBatches = new Lazy.Batch[lazyFields.length];
+            for (int i = 0; i < lazyFields.length; i++) {
+                LazyLoad lazyLoad = lazyFields[i].getAnnotation(LazyLoad.class);
+                Integer keyIndex = indexByLabel.get(lazyLoad.key().toLowerCase());
+                if (keyIndex == null)
+                    throw new SQLException("Lazy field %s needs column %s in the result set".formatted(lazyFields[i].getName(), lazyLoad.key()));
+                lazyKeyIndexes[i] = keyIndex;
+                lazyBatches[i] = new Lazy.Batch(sqlFactory, lazyLoad.table(), lazyLoad.key(), lazyFields[i].getName());
+            }
+        }
+
+        R newInstance() throws ReflectiveOperationException {
+            return constructor.newInstance();
+        }
+
+        R map(ResultSet rs) throws SQLException, ReflectiveOperationException {
+            R obj = newInstance();
+            mapInto(obj, rs);
+            return obj;
+        }
+
+        void mapInto(R obj, ResultSet rs) throws SQLException, ReflectiveOperationException {
+            for (int i = 0; i < columnFields.length; i++) {
+                if (columnIndexes[i] > 0) columnFields[i].set(obj, rs.getObject(columnIndexes[i]));
+            }
+            for (int i = 0; i < lazyFields.length; i++) {
+                lazyFields[i].set(obj, lazyBatches[i].add(rs.getObject(lazyKeyIndexes[i])));
+            }
+        }
+    }
+
+    private final Constructor<R> constructor;
+    private final Field[] columnFields;
+    private final Field[] lazyFields;
+
+    private EntityMapper(Class<R> clazz) {
+        try {
+            constructor = clazz.getConstructor();
+        } catch (NoSuchMethodException e) {
+            throw new IllegalArgumentException(clazz.getName() + " needs a public no-args constructor", e);
+        }
+
+        List<Field> columns = new ArrayList<>();
+        List<Field> lazies = new ArrayList<>();
+        for (Field f : clazz.getDeclaredFields()) {
+            if (Modifier.isStatic(f.getModifiers()) || f.isSynthetic()) continue;
+            f.setAccessible(true);
+            if (f.isAnnotationPresent(LazyLoad.class)) {
+                if (f.getType() != Lazy.class)
+                    throw new IllegalArgumentException("@LazyLoad field %s must be of type Lazy".formatted(f.getName()));
+                lazies.add(f);
+            } else columns.add(f);
+        }
+        columnFields = columns.toArray(Field[]::new);
+        lazyFields = lazies.toArray(Field[]::new);
+    }
+
+    @SuppressWarnings("unchecked")
+    static <R> EntityMapper<R> of(Class<R> clazz) {
+        return (EntityMapper<R>) MAPPERS.get(clazz);
+    }
+
+    // Lazy values load once for every holder, so copies share them
+    R copy(R source) {
+        try {
+            R copy = constructor.newInstance();
+            for (Field f : columnFields) f.set(copy, f.get(source));
+            for (Field f : lazyFields) f.set(copy, f.get(source));
+            return copy;
+        } catch (ReflectiveOperationException e) {
+            throw new SQLRuntimeException("Failed to copy %s: %s".formatted(constructor.getDeclaringClass().getName(), e.getMessage()), e);
+        }
+    }
+
+    List<String> getColumnNames() {
+        return Arrays.stream(columnFields).map(Field::getName).toList();
+    }
+
+    boolean hasColumn(String name) {
+        return Arrays.stream(columnFields).anyMatch(f -> f.getName().equals(name));
+    }
+
+    Binder binder(ResultSetMetaData metaData, Supplier<Sql> sqlFactory) throws SQLException {
+        return new Binder(metaData, sqlFactory);
+    }
+}
@@ -0,0 +1,75 @@
+package com.ll.simpleDb;
+
+import java.util.*;
+import java.util.function.Supplier;
+
+public class Lazy<T> {
+    static class Batch {
+        private final Supplier<Sql> sqlFactory;
+        private final String table;
+        private final String keyColumn;
+        private final String column;
+        private final Map<Object, List<Lazy<?>>> pending;
+
+        Batch(Supplier<Sql> sqlFactory, String table, String keyColumn, String column) {
+            this.sqlFactory = sqlFactory;
+            this.table = table;
+            this.keyColumn = keyColumn;
+            this.column = column;
+            this.pending = new LinkedHashMap<>();
+        }
+
+        synchronized <T> Lazy<T> add(Object key) {
+            Lazy<T> lazy = new Lazy<>(this);
+            pending.computeIfAbsent(key, k -> new ArrayList<>()).add(lazy);
+            return lazy;
+        }
+
+        // one follow-up query fills every value of the result set that produced this batch
+        private synchronized void load() {
+            if (pending.isEmpty()) return;
+            Map<Object, Object> values = sqlFactory.get()
+                    .append("SELECT `%s`, `%s`".formatted(keyColumn, column))
+                    .append("FROM `%s`".formatted(table))
+                    .appendIn("WHERE `%s` IN (?)".formatted(keyColumn), pending.keySet())
+                    .selectMap();
+            pending.forEach((key, lazies) -> lazies.forEach(lazy -> lazy.set(values.get(key))));
+            pending.clear();
+        }
+    }
+
+    private final Batch batch;
+    private volatile boolean loaded;
+    private T value;
+
+    private Lazy(Batch batch) {
+        this.batch = batch;
+    }
+
+    public static <T> Lazy<T> of(T value) {
+        Lazy<T> lazy = new Lazy<>(null);
+        lazy.value = value;
+        lazy.loaded = true;
+        return lazy;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void set(Object value) {
+        this.value = (T) value;
+        loaded = true;
+    }
+
+    public T get() {
+        if (!loaded) batch.load();
+        return value;
+    }
+
+    public boolean isLoaded() {
+        return loaded;
+    }
+
+    @Override
+    public String toString() {
+        return loaded ? String.valueOf(value) : "Lazy(not loaded)";
+    }
+}
@@ -0,0 +1,14 @@
+package com.ll.simpleDb;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.FIELD)
+public @interface LazyLoad {
+    String table();
+
+    String key() default "id";
+}
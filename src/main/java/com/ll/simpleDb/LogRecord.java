@@ -0,0 +1,5 @@
+package com.ll.simpleDb;
+
+public record LogRecord(long timestamp, SimpleDbLogger.Level level, String event, String message,
+                        String thread, Throwable error, long suppressed) {
+}
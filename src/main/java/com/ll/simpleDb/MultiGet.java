@@ -0,0 +1,151 @@
+package com.ll.simpleDb;
+
+import java.sql.Connection;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+public class MultiGet<R> {
+    private record Chunk(int idx, Object[] ids) {
+    }
+
+    private final DBConnectionPool dbConnectionPool;
+    private final CompiledQuery<R> chunkQuery;
+    private final ExecutorService executor;
+    private final int chunkSize;
+    private final int parallelism;
+
+    MultiGet(DBConnectionPool dbConnectionPool, ExecutorService executor, int queryTimeout, boolean devMode,
+             Sql sql, Class<R> resultType, int chunkSize, int parallelism) {
+        if (chunkSize < 1) throw new IllegalArgumentException("chunkSize must be positive");
+        String queryString = sql.getQueryString();
+        List<Integer> slots = CompiledQuery.slotPositions(queryString);
+        if (slots.size() != 1)
+            throw new IllegalArgumentException("Multi-get query needs exactly one ? for the id list: " + queryString);
+
+        // every chunk has exactly chunkSize placeholders, so all chunks share one statement text
+        int slot = slots.get(0);
+        String expanded = queryString.substring(0, slot)
+                + String.join(", ", Collections.nCopies(chunkSize, "?"))
+                + queryString.substring(slot + 1);
+        Class<?>[] parameterTypes = new Class<?>[chunkSize];
+        Arrays.fill(parameterTypes, Object.class);
+
+        this.dbConnectionPool = dbConnectionPool;
+        this.chunkQuery = new CompiledQuery<>(dbConnectionPool, queryTimeout, devMode,
+                Sql.of(dbConnectionPool, queryTimeout, devMode).append(expanded), resultType, parameterTypes);
+        this.executor = executor;
+        this.chunkSize = chunkSize;
+        this.parallelism = parallelism;
+    }
+
+    public List<R> selectRows(Collection<?> ids) {
+        return selectChunks(new LinkedHashSet<>(ids)).stream()
+                .flatMap(List::stream)
+                .collect(Collectors.toList());
+    }
+
+    public <K> List<R> selectRows(Collection<K> ids, Function<R, K> keyOf) {
+        Set<K> distinctIds = new LinkedHashSet<>(ids);
+        Map<K, R> rowsById = new HashMap<>();
+        selectChunks(distinctIds).forEach(rows -> rows.forEach(row -> rowsById.putIfAbsent(keyOf.apply(row), row)));
+        return distinctIds.stream()
+                .map(rowsById::get)
+                .filter(Objects::nonNull)
+                .collect(Collectors.toList());
+    }
+
+    private class Batch {
+        private final Queue<Chunk> chunks;
+        private final List<List<R>> results;
+        private final AtomicReference<RuntimeException> failure;
+        private final CountDownLatch done;
+        private final QueryTracker tracker;
+
+        private Batch(Queue<Chunk> chunks) {
+            this.chunks = chunks;
+            this.results = new ArrayList<>(Collections.nCopies(chunks.size(), null));
+            this.failure = new AtomicReference<>();
+            this.done = new CountDownLatch(chunks.size());
+            this.tracker = QueryTracker.current();
+        }
+
+        private void run(Chunk chunk, Connection connection) {
+            try {
+                if (failure.get() == null) {
+                    results.set(chunk.idx(), connection == null
+                            ? chunkQuery.selectRows(chunk.ids())
+                            : chunkQuery.selectRows(connection, chunk.ids()));
+                } else if (connection != null) {
+                    dbConnectionPool.releaseConnection(connection);
+                }
+            } catch (RuntimeException e) {
+                failure.compareAndSet(null, e);
+            } finally {
+                done.countDown();
+            }
+        }
+
+        // a helper takes a chunk only once the pool has handed it a connection, so no executor thread waits on the pool
+        private void startHelper() {
+            if (chunks.isEmpty()) return;
+            dbConnectionPool.getConnectionAsync(executor).whenComplete((connection, e) -> {
+                // without a connection the helper just stops, the caller drains what is left
+                if (e != null) return;
+                try {
+                    executor.execute(() -> {
+                        Chunk chunk = chunks.poll();
+                        if (chunk == null) {
+                            dbConnectionPool.releaseConnection(connection);
+                            return;
+                        }
+                        QueryTracker.callWithin(tracker, () -> {
+                            run(chunk, connection);
+                            return null;
+                        });
+                        startHelper();
+                    });
+                } catch (RejectedExecutionException re) {
+                    dbConnectionPool.releaseConnection(connection);
+                }
+            });
+        }
+    }
+
+    private List<List<R>> selectChunks(Set<?> ids) {
+        Batch batch = new Batch(chunk(ids));
+        if (batch.chunks.isEmpty()) return batch.results;
+
+        for (int i = Math.min(parallelism, batch.results.size()) - 1; i > 0; i--) batch.startHelper();
+        // the caller drains the queue as well, so a busy pool or executor only costs parallelism
+        Chunk chunk;
+        while ((chunk = batch.chunks.poll()) != null) batch.run(chunk, null);
+        try {
+            batch.done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLRuntimeException("Interrupted while waiting for multi-get chunks", e);
+        }
+
+        if (batch.failure.get() != null) throw batch.failure.get();
+        return batch.results;
+    }
+
+    private Queue<Chunk> chunk(Set<?> ids) {
+        Queue<Chunk> chunks = new ConcurrentLinkedQueue<>();
+        Object[] all = ids.toArray();
+        for (int from = 0, idx = 0; from < all.length; from += chunkSize, idx++) {
+            Object[] chunk = Arrays.copyOfRange(all, from, from + chunkSize);
+            // the last chunk is padded with its own last id, duplicates in IN (...) are harmless
+            int filled = Math.min(chunkSize, all.length - from);
+            Arrays.fill(chunk, filled, chunkSize, chunk[filled - 1]);
+            chunks.add(new Chunk(idx, chunk));
+        }
+        return chunks;
+    }
+}
@@ -0,0 +1,5 @@
+package com.ll.simpleDb;
+
+public record PoolStats(int activeConnections, int availableConnections, int usedConnections,
+                        int pendingRequests, int maxPoolSize) {
+}
@@ -0,0 +1,7 @@
+package com.ll.simpleDb;
+
+public class QueryBudgetExceededException extends SQLRuntimeException {
+    public QueryBudgetExceededException(String s) {
+        super(s);
+    }
+}
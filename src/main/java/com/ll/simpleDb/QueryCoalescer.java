@@ -0,0 +1,80 @@
+package com.ll.simpleDb;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+class QueryCoalescer {
+    // a follower never waits on a flight in another partition, that would tie it to the other pool's connections
+    // arguments are compared as typed values, true and "true" inline to the same text but select different rows
+    private record Key(DBConnectionPool pool, String terminal, Class<?> resultType, String queryShape, List<Object> arguments) {
+    }
+
+    private final ConcurrentHashMap<Key, CompletableFuture<Object>> inFlight;
+    private final Executor evictor;
+    private final long windowMillis;
+    private final LongAdder executions;
+    private final LongAdder coalesced;
+
+    QueryCoalescer(long windowMillis) {
+        this.windowMillis = windowMillis;
+        inFlight = new ConcurrentHashMap<>();
+        evictor = windowMillis > 0 ? CompletableFuture.delayedExecutor(windowMillis, TimeUnit.MILLISECONDS) : null;
+        executions = new LongAdder();
+        coalesced = new LongAdder();
+    }
+
+    // the flight keeps the result it read, every caller gets it through share, which copies a mutable result
+    <R> R execute(DBConnectionPool pool, String terminal, Class<?> resultType, String queryShape, List<Object> arguments,
+                  Supplier<?> query, Function<Object, R> share) {
+        Key key = new Key(pool, terminal, resultType, queryShape, new ArrayList<>(arguments));
+        CompletableFuture<Object> flight = new CompletableFuture<>();
+        CompletableFuture<Object> leader = inFlight.putIfAbsent(key, flight);
+        if (leader != null) {
+            coalesced.increment();
+            try {
+                return share.apply(leader.join());
+            } catch (CompletionException e) {
+                // an interrupted leader failed for its own reasons, the follower runs the query itself
+                if (isInterrupted(e.getCause())) {
+                    executions.increment();
+                    return share.apply(query.get());
+                }
+                if (e.getCause() instanceof RuntimeException re) throw re;
+                throw e;
+            }
+        }
+
+        executions.increment();
+        try {
+            Object ret = query.get();
+            flight.complete(ret);
+            return share.apply(ret);
+        } catch (RuntimeException | Error e) {
+            flight.completeExceptionally(e);
+            throw e;
+        } finally {
+            // the result stays shareable for the window, failures are never shared beyond the in-flight callers
+            if (evictor == null || flight.isCompletedExceptionally()) inFlight.remove(key, flight);
+            else evictor.execute(() -> inFlight.remove(key, flight));
+        }
+    }
+
+    private static boolean isInterrupted(Throwable failure) {
+        for (Throwable t = failure; t != null; t = t.getCause()) {
+            if (t instanceof InterruptedException) return true;
+        }
+        return false;
+    }
+
+    CoalescingStats getStats() {
+        return new CoalescingStats(executions.sum(), coalesced.sum(), windowMillis);
+    }
+}
@@ -0,0 +1,136 @@
+package com.ll.simpleDb;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+public class QueryTracker implements AutoCloseable {
+    public enum BudgetPolicy {
+        NONE, WARN, FAIL
+    }
+
+    private static final ThreadLocal<QueryTracker> CURRENT = new ThreadLocal<>();
+    private static final int DEFAULT_N_PLUS_ONE_THRESHOLD = 3;
+    private final int queryBudget;
+    private final BudgetPolicy budgetPolicy;
+    private final int nPlusOneThreshold;
+    private final QueryTracker previous;
+    private final AtomicInteger queryCount;
+    private final AtomicInteger roundTripCount;
+    private final AtomicLong rowCount;
+    private final AtomicBoolean budgetWarned;
+    private final Map<String, Set<String>> queriesByShape;
+    private final Map<String, AtomicInteger> executionsByShape;
+
+    private QueryTracker(int queryBudget, BudgetPolicy budgetPolicy, int nPlusOneThreshold) {
+        this.queryBudget = queryBudget;
+        this.budgetPolicy = budgetPolicy;
+        this.nPlusOneThreshold = nPlusOneThreshold;
+        this.previous = CURRENT.get();
+        queryCount = new AtomicInteger(0);
+        roundTripCount = new AtomicInteger(0);
+        rowCount = new AtomicLong(0);
+        budgetWarned = new AtomicBoolean(false);
+        queriesByShape = new ConcurrentHashMap<>();
+        executionsByShape = new ConcurrentHashMap<>();
+    }
+
+    public static QueryTracker start() {
+        return start(Integer.MAX_VALUE, BudgetPolicy.NONE);
+    }
+
+    public static QueryTracker start(int queryBudget, BudgetPolicy budgetPolicy) {
+        return start(queryBudget, budgetPolicy, DEFAULT_N_PLUS_ONE_THRESHOLD);
+    }
+
+    public static QueryTracker start(int queryBudget, BudgetPolicy budgetPolicy, int nPlusOneThreshold) {
+        QueryTracker tracker = new QueryTracker(queryBudget, budgetPolicy, nPlusOneThreshold);
+        CURRENT.set(tracker);
+        return tracker;
+    }
+
+    public static QueryTracker current() {
+        return CURRENT.get();
+    }
+
+    static <R> R callWithin(QueryTracker tracker, Supplier<R> supplier) {
+        if (tracker == null) return supplier.get();
+        QueryTracker outer = CURRENT.get();
+        CURRENT.set(tracker);
+        try {
+            return supplier.get();
+        } finally {
+            if (outer == null) CURRENT.remove();
+            else CURRENT.set(outer);
+        }
+    }
+
+    static void beforeQuery(String shape, String query) {
+        QueryTracker tracker = CURRENT.get();
+        if (tracker != null) tracker.recordQuery(shape, query);
+    }
+
+    static void afterQuery(int rows) {
+        QueryTracker tracker = CURRENT.get();
+        if (tracker == null) return;
+        tracker.roundTripCount.incrementAndGet();
+        tracker.rowCount.addAndGet(rows);
+    }
+
+    private void recordQuery(String shape, String query) {
+        int count = queryCount.incrementAndGet();
+        queriesByShape.computeIfAbsent(shape, k -> ConcurrentHashMap.newKeySet()).add(query);
+        executionsByShape.computeIfAbsent(shape, k -> new AtomicInteger(0)).incrementAndGet();
+
+        if (count <= queryBudget) return;
+        String message = "Query budget exceeded: %d > %d (%s)".formatted(count, queryBudget, shape);
+        switch (budgetPolicy) {
+            case FAIL -> throw new QueryBudgetExceededException(message);
+            case WARN -> {
+                if (budgetWarned.compareAndSet(false, true)) SimpleDbLogger.warn("query.budget", message);
+            }
+            default -> {
+            }
+        }
+    }
+
+    public int getQueryCount() {
+        return queryCount.get();
+    }
+
+    public int getRoundTripCount() {
+        return roundTripCount.get();
+    }
+
+    public long getRowCount() {
+        return rowCount.get();
+    }
+
+    public boolean isBudgetExceeded() {
+        return queryCount.get() > queryBudget;
+    }
+
+    public Map<String, Integer> getNPlusOneSuspects() {
+        return executionsByShape.entrySet().stream()
+                .filter(e -> e.getValue().get() >= nPlusOneThreshold)
+                .filter(e -> queriesByShape.get(e.getKey()).size() > 1)
+                .collect(Collectors.toMap(Map.Entry::getKey, e -> e.getValue().get()));
+    }
+
+    public String summary() {
+        return "queries=%d; roundTrips=%d; rows=%d; nPlusOne=%d".formatted(
+                getQueryCount(), getRoundTripCount(), getRowCount(), getNPlusOneSuspects().size());
+    }
+
+    @Override
+    public void close() {
+        if (CURRENT.get() != this) return;
+        if (previous == null) CURRENT.remove();
+        else CURRENT.set(previous);
+    }
+}
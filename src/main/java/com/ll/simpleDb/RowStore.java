@@ -0,0 +1,272 @@
+package com.ll.simpleDb;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Predicate;
+
+public class RowStore {
+    private enum ColumnType {
+        LONG, DOUBLE, DATETIME, STRING
+    }
+
+    public class Cursor {
+        private int position = -1;
+        private int row = -1;
+
+        private Cursor() {
+        }
+
+        public boolean next() {
+            if (position + 1 >= size) return false;
+            row = order[++position];
+            return true;
+        }
+
+        public Cursor moveTo(int position) {
+            if (position < 0 || position >= size) throw new IndexOutOfBoundsException(position);
+            this.position = position;
+            row = order[position];
+            return this;
+        }
+
+        public boolean isNull(String column) {
+            return isNull(findColumn(column));
+        }
+
+        public boolean isNull(int column) {
+            long[] bits = nulls[column - 1];
+            return bits != null && (bits[row >>> 6] & (1L << row)) != 0;
+        }
+
+        public long getLong(String column) {
+            return getLong(findColumn(column));
+        }
+
+        public long getLong(int column) {
+            return longs[checkType(column, ColumnType.LONG)][row];
+        }
+
+        public boolean getBoolean(String column) {
+            return getLong(column) != 0;
+        }
+
+        public boolean getBoolean(int column) {
+            return getLong(column) != 0;
+        }
+
+        public double getDouble(String column) {
+            return getDouble(findColumn(column));
+        }
+
+        public double getDouble(int column) {
+            return doubles[checkType(column, ColumnType.DOUBLE)][row];
+        }
+
+        public LocalDateTime getDatetime(String column) {
+            return getDatetime(findColumn(column));
+        }
+
+        public LocalDateTime getDatetime(int column) {
+            long micros = longs[checkType(column, ColumnType.DATETIME)][row];
+            if (isNull(column)) return null;
+            return LocalDateTime.ofEpochSecond(Math.floorDiv(micros, 1_000_000L),
+                    (int) Math.floorMod(micros, 1_000_000L) * 1000, ZoneOffset.UTC);
+        }
+
+        public String getString(String column) {
+            return getString(findColumn(column));
+        }
+
+        public String getString(int column) {
+            if (isNull(column)) return null;
+            int idx = column - 1;
+            return switch (types[idx]) {
+                case LONG -> String.valueOf(longs[idx][row]);
+                case DOUBLE -> String.valueOf(doubles[idx][row]);
+                case DATETIME -> String.valueOf(getDatetime(column));
+                case STRING -> {
+                    int start = row == 0 ? 0 : stringEnds[idx][row - 1];
+                    yield new String(stringBytes[idx], start, stringEnds[idx][row] - start, StandardCharsets.UTF_8);
+                }
+            };
+        }
+    }
+
+    private static final int INITIAL_CAPACITY = 64;
+    private final String[] labels;
+    private final Map<String, Integer> indexByLabel;
+    private final ColumnType[] types;
+    private final long[][] longs;
+    private final double[][] doubles;
+    private final byte[][] stringBytes;
+    private final int[][] stringEnds;
+    private final long[][] nulls;
+    private int capacity;
+    private int rowCount;
+    private int[] order;
+    private int size;
+
+    RowStore(ResultSetMetaData metaData) throws SQLException {
+        int columnCount = metaData.getColumnCount();
+        labels = new String[columnCount];
+        indexByLabel = new HashMap<>();
+        types = new ColumnType[columnCount];
+        longs = new long[columnCount][];
+        doubles = new double[columnCount][];
+        stringBytes = new byte[columnCount][];
+        stringEnds = new int[columnCount][];
+        nulls = new long[columnCount][];
+        capacity = INITIAL_CAPACITY;
+
+        for (int i = 0; i < columnCount; i++) {
+            labels[i] = metaData.getColumnLabel(i + 1);
+            indexByLabel.putIfAbsent(labels[i].toLowerCase(), i + 1);
+            types[i] = columnType(metaData.getColumnType(i + 1));
+            switch (types[i]) {
+                case LONG, DATETIME -> longs[i] = new long[capacity];
+                case DOUBLE -> doubles[i] = new double[capacity];
+                case STRING -> {
+                    stringBytes[i] = new byte[capacity * 8];
+                    stringEnds[i] = new int[capacity];
+                }
+            }
+        }
+    }
+
+    private static ColumnType columnType(int sqlType) {
+        return switch (sqlType) {
+            case Types.BIT, Types.BOOLEAN, Types.TINYINT, Types.SMALLINT, Types.INTEGER, Types.BIGINT -> ColumnType.LONG;
+            case Types.REAL, Types.FLOAT, Types.DOUBLE -> ColumnType.DOUBLE;
+            case Types.DATE, Types.TIMESTAMP -> ColumnType.DATETIME;
+            // DECIMAL, TIME and everything else keep their exact text
+            default -> ColumnType.STRING;
+        };
+    }
+
+    void add(ResultSet rs) throws SQLException {
+        if (rowCount == capacity) grow(capacity * 2);
+        int row = rowCount++;
+        for (int i = 0; i < types.length; i++) {
+            switch (types[i]) {
+                case LONG -> longs[i][row] = rs.getLong(i + 1);
+                case DOUBLE -> doubles[i][row] = rs.getDouble(i + 1);
+                case DATETIME -> {
+                    LocalDateTime value = rs.getObject(i + 1, LocalDateTime.class);
+                    if (value != null)
+                        longs[i][row] = value.toEpochSecond(ZoneOffset.UTC) * 1_000_000L + value.getNano() / 1000;
+                }
+                case STRING -> appendString(i, row, rs.getString(i + 1));
+            }
+            if (rs.wasNull()) markNull(i, row);
+        }
+    }
+
+    private void appendString(int idx, int row, String value) {
+        int start = row == 0 ? 0 : stringEnds[idx][row - 1];
+        byte[] bytes = value == null ? new byte[0] : value.getBytes(StandardCharsets.UTF_8);
+        if (start + bytes.length > stringBytes[idx].length)
+            stringBytes[idx] = Arrays.copyOf(stringBytes[idx], Math.max(stringBytes[idx].length * 2, start + bytes.length));
+        System.arraycopy(bytes, 0, stringBytes[idx], start, bytes.length);
+        stringEnds[idx][row] = start + bytes.length;
+    }
+
+    private void markNull(int idx, int row) {
+        if (nulls[idx] == null) nulls[idx] = new long[(capacity + 63) >>> 6];
+        nulls[idx][row >>> 6] |= 1L << row;
+    }
+
+    private void grow(int newCapacity) {
+        for (int i = 0; i < types.length; i++) {
+            if (longs[i] != null) longs[i] = Arrays.copyOf(longs[i], newCapacity);
+            if (doubles[i] != null) doubles[i] = Arrays.copyOf(doubles[i], newCapacity);
+            if (stringEnds[i] != null) stringEnds[i] = Arrays.copyOf(stringEnds[i], newCapacity);
+            if (nulls[i] != null) nulls[i] = Arrays.copyOf(nulls[i], (newCapacity + 63) >>> 6);
+        }
+        capacity = newCapacity;
+    }
+
+    void complete() {
+        grow(rowCount);
+        for (int i = 0; i < types.length; i++) {
+            if (stringBytes[i] != null)
+                stringBytes[i] = Arrays.copyOf(stringBytes[i], rowCount == 0 ? 0 : stringEnds[i][rowCount - 1]);
+        }
+        order = new int[rowCount];
+        for (int i = 0; i < rowCount; i++) order[i] = i;
+        size = rowCount;
+    }
+
+    private int findColumn(String column) {
+        Integer idx = indexByLabel.get(column.toLowerCase());
+        if (idx == null) throw new IllegalArgumentException("Unknown column " + column);
+        return idx;
+    }
+
+    private int checkType(int column, ColumnType type) {
+        int idx = column - 1;
+        if (types[idx] != type)
+            throw new IllegalArgumentException("Column %s is %s, not %s".formatted(labels[idx], types[idx], type));
+        return idx;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getColumnCount() {
+        return labels.length;
+    }
+
+    public String getColumnLabel(int column) {
+        return labels[column - 1];
+    }
+
+    public Cursor cursor() {
+        return new Cursor();
+    }
+
+    // sorting and filtering only rearrange the row order, the packed columns are never moved
+    public void sort(Comparator<Cursor> comparator) {
+        Cursor left = new Cursor();
+        Cursor right = new Cursor();
+        int[] from = order;
+        int[] to = new int[size];
+        for (int width = 1; width < size; width *= 2) {
+            for (int lo = 0; lo < size; lo += 2 * width) {
+                int mid = Math.min(lo + width, size);
+                int hi = Math.min(lo + 2 * width, size);
+                int i = lo, j = mid, k = lo;
+                while (i < mid && j < hi) {
+                    left.row = from[i];
+                    right.row = from[j];
+                    to[k++] = comparator.compare(right, left) < 0 ? from[j++] : from[i++];
+                }
+                while (i < mid) to[k++] = from[i++];
+                while (j < hi) to[k++] = from[j++];
+            }
+            int[] merged = to;
+            to = from;
+            from = merged;
+        }
+        order = from;
+    }
+
+    public void filter(Predicate<Cursor> predicate) {
+        Cursor cursor = new Cursor();
+        int kept = 0;
+        for (int i = 0; i < size; i++) {
+            cursor.row = order[i];
+            if (predicate.test(cursor)) order[kept++] = order[i];
+        }
+        size = kept;
+    }
+}
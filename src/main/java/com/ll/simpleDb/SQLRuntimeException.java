@@ -2,11 +2,12 @@ package com.ll.simpleDb;
 
 public class SQLRuntimeException extends RuntimeException {
     public SQLRuntimeException(String s) {
-        System.out.println(s);
+        super(s);
+        SimpleDbLogger.warn("sql.exception", s);
     }
 
     public SQLRuntimeException(String s, Exception e) {
-        System.out.println(s);
-        e.printStackTrace();
+        super(s, e);
+        SimpleDbLogger.error("sql.exception", s, e);
     }
 }
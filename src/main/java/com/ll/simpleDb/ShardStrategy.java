@@ -0,0 +1,38 @@
+package com.ll.simpleDb;
+
+import java.util.Arrays;
+
+@FunctionalInterface
+public interface ShardStrategy {
+    int shardOf(Object shardKey, int shardCount);
+
+    // integral keys route by value with a fixed mix, so 7, 7L and every JVM agree on the shard
+    static ShardStrategy hash() {
+        return (shardKey, shardCount) -> (int) Math.floorMod(mix(toLong(shardKey)), (long) shardCount);
+    }
+
+    private static long toLong(Object shardKey) {
+        if (shardKey instanceof Long || shardKey instanceof Integer || shardKey instanceof Short || shardKey instanceof Byte)
+            return ((Number) shardKey).longValue();
+        throw new IllegalArgumentException("Shard key must be an integral number but was "
+                + (shardKey == null ? "null" : shardKey.getClass().getName()));
+    }
+
+    private static long mix(long key) {
+        key = (key ^ (key >>> 33)) * 0xff51afd7ed558ccdL;
+        key = (key ^ (key >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return key ^ (key >>> 33);
+    }
+
+    static ShardStrategy range(long... upperBounds) {
+        long[] bounds = upperBounds.clone();
+        Arrays.sort(bounds);
+        return (shardKey, shardCount) -> {
+            long key = ((Number) shardKey).longValue();
+            for (int i = 0; i < bounds.length && i < shardCount - 1; i++) {
+                if (key < bounds[i]) return i;
+            }
+            return Math.min(bounds.length, shardCount - 1);
+        };
+    }
+}
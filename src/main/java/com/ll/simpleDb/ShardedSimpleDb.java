@@ -0,0 +1,74 @@
+package com.ll.simpleDb;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Function;
+
+public class ShardedSimpleDb {
+    private final List<SimpleDb> shards;
+    private final ShardStrategy shardStrategy;
+
+    public ShardedSimpleDb(List<SimpleDb> shards, ShardStrategy shardStrategy) {
+        if (shards.isEmpty()) throw new IllegalArgumentException("At least one shard is required");
+        this.shards = List.copyOf(shards);
+        this.shardStrategy = shardStrategy;
+    }
+
+    public int getShardCount() {
+        return shards.size();
+    }
+
+    public SimpleDb shardFor(Object shardKey) {
+        return shards.get(shardStrategy.shardOf(shardKey, shards.size()));
+    }
+
+    public void setQueryTimeout(int queryTimeout) {
+        shards.forEach(shard -> shard.setQueryTimeout(queryTimeout));
+    }
+
+    public void setDevMode(boolean devMode) {
+        shards.forEach(shard -> shard.setDevMode(devMode));
+    }
+
+    public void run(Object shardKey, String queryString, Object... args) {
+        shardFor(shardKey).run(queryString, args);
+    }
+
+    public void runOnAll(String queryString, Object... args) {
+        shards.forEach(shard -> shard.run(queryString, args));
+    }
+
+    public Sql genSql(Object shardKey) {
+        return shardFor(shardKey).genSql();
+    }
+
+    public <R> List<R> scatter(Function<Sql, R> query) {
+        List<CompletableFuture<R>> futures = shards.stream()
+                .map(shard -> shard.runAsync(query))
+                .toList();
+        try {
+            return futures.stream().map(CompletableFuture::join).toList();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof SQLRuntimeException sqlRuntimeException) throw sqlRuntimeException;
+            throw new SQLRuntimeException("Scatter query failed", e);
+        }
+    }
+
+    public <R> List<R> selectRows(Function<Sql, List<R>> query, Comparator<? super R> order, int limit) {
+        return scatter(query).stream()
+                .flatMap(List::stream)
+                .sorted(order)
+                .limit(limit)
+                .toList();
+    }
+
+    public long selectLongSum(Function<Sql, Long> query) {
+        return scatter(query).stream().mapToLong(Long::longValue).sum();
+    }
+
+    public void close() {
+        shards.forEach(SimpleDb::close);
+    }
+}
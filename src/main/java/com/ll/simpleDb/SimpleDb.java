@@ -3,34 +3,64 @@ package com.ll.simpleDb;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.function.Function;
 
 public class SimpleDb {
     private final DBConnectionPool dbConnectionPool;
-    private Connection connection;
+    private final ConnectionBudget connectionBudget;
+    private final Map<String, DBConnectionPool> partitions;
+    private final String url;
+    private final String username;
+    private final String password;
+    private volatile DBConnectionPool pipelinePool;
+    private volatile QueryCoalescer queryCoalescer;
+    private final ExecutorService dbExecutor;
+    private final List<WriteBehindBuffer> writeBehindBuffers;
     private int queryTimeout;
     private boolean devMode;
     private static final String HOST_FORMAT;
+    private static final String MULTI_QUERIES_OPTION;
     private static final int PORT;
     private static final int DEFAULT_QUERY_TIMEOUT;
+    private static final int DB_EXECUTOR_THREADS;
+    private static final int DB_EXECUTOR_QUEUE_SIZE;
+    private static final int MULTI_GET_CHUNK_SIZE;
+    private static final int DEFAULT_CONNECTION_BUDGET;
+    private static final String DEFAULT_PARTITION;
+    private static final int PIPELINE_GUARANTEED_CONNECTIONS;
+    private static final int PIPELINE_MAX_CONNECTIONS;
+    private static final long PIPELINE_WAIT_TIMEOUT;
 
     static {
         DEFAULT_QUERY_TIMEOUT = 1;
+        DB_EXECUTOR_THREADS = 10;
+        DB_EXECUTOR_QUEUE_SIZE = 1000;
+        MULTI_GET_CHUNK_SIZE = 500;
+        DEFAULT_CONNECTION_BUDGET = 10;
+        DEFAULT_PARTITION = "default";
+        PIPELINE_GUARANTEED_CONNECTIONS = 1;
+        PIPELINE_MAX_CONNECTIONS = 4;
+        PIPELINE_WAIT_TIMEOUT = 1000;
         PORT = 3306;
-        HOST_FORMAT = "jdbc:mysql://%s:%s/%s";
-    }
-
-    private void setConnection() {
-        try {
-            connection = dbConnectionPool.getConnection();
-        } catch (SQLException | InterruptedException e) {
-            throw new RuntimeException(e);
-        } finally {
-            dbConnectionPool.releaseConnection(connection);
-        }
+        HOST_FORMAT = "jdbc:mysql://%s:%s/%s?cachePrepStmts=true";
+        MULTI_QUERIES_OPTION = "&allowMultiQueries=true";
     }
 
     public SimpleDb(String host, String id, String password, String database) {
-        dbConnectionPool = new DBConnectionPool(HOST_FORMAT.formatted(host, PORT, database), id, password);
+        url = HOST_FORMAT.formatted(host, PORT, database);
+        username = id;
+        this.password = password;
+        connectionBudget = new ConnectionBudget(DEFAULT_CONNECTION_BUDGET);
+        dbConnectionPool = new DBConnectionPool(url, username, password, connectionBudget);
+        partitions = new ConcurrentHashMap<>();
+        partitions.put(DEFAULT_PARTITION, dbConnectionPool);
+        dbExecutor = new ThreadPoolExecutor(DB_EXECUTOR_THREADS, DB_EXECUTOR_THREADS, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(DB_EXECUTOR_QUEUE_SIZE));
+        writeBehindBuffers = new CopyOnWriteArrayList<>();
         queryTimeout = DEFAULT_QUERY_TIMEOUT;
         devMode = false;
     }
@@ -44,22 +74,154 @@ public class SimpleDb {
     }
 
     public void run(String queryString, Object... args) {
-        setConnection();
-        try (PreparedStatement pStmt = connection.prepareStatement(queryString)) {
-            pStmt.setQueryTimeout(queryTimeout);
-            int idx = 0;
-            for (Object o : args) pStmt.setObject(++idx, o);
-            pStmt.executeUpdate();
+        try {
+            runUpdate(queryString, args);
+        } catch (SQLException e) {
+            SimpleDbLogger.error("sql.run", "Failed to get Statement", e);
+        }
+    }
+
+    long runUpdate(String queryString, Object... args) throws SQLException {
+        QueryTracker.beforeQuery(queryString.trim(), queryString.trim() + Arrays.toString(args));
+        Connection connection = null;
+        SQLException failure = null;
+        try {
+            connection = dbConnectionPool.getConnection();
+            try (PreparedStatement pStmt = connection.prepareStatement(queryString)) {
+                pStmt.setQueryTimeout(queryTimeout);
+                int idx = 0;
+                for (Object o : args) pStmt.setObject(++idx, o);
+                return pStmt.executeUpdate();
+            }
         } catch (SQLException e) {
-            System.out.println("SQL Exception: Failed to get Statement");
+            failure = e;
+            throw e;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a connection", e);
+        } finally {
+            dbConnectionPool.releaseConnection(connection, failure);
+            QueryTracker.afterQuery(0);
         }
     }
 
+    public void setCoalescing(boolean coalescing) {
+        setCoalescing(coalescing, 0);
+    }
+
+    public void setCoalescing(boolean coalescing, long windowMillis) {
+        queryCoalescer = coalescing ? new QueryCoalescer(windowMillis) : null;
+    }
+
+    public CoalescingStats getCoalescingStats() {
+        QueryCoalescer coalescer = queryCoalescer;
+        return coalescer == null ? new CoalescingStats(0, 0, 0) : coalescer.getStats();
+    }
+
+    public PoolStats getPoolStats() {
+        return dbConnectionPool.getStats();
+    }
+
+    public PoolStats getPoolStats(String partition) {
+        return getPartition(partition).getStats();
+    }
+
+    public void setConnectionBudget(int totalConnections) {
+        connectionBudget.setTotalConnections(totalConnections);
+    }
+
+    public synchronized void addPartition(String name, int guaranteedConnections, int maxConnections, long waitTimeoutMillis) {
+        if (partitions.containsKey(name)) throw new IllegalArgumentException("Partition %s already exists".formatted(name));
+        partitions.put(name, new DBConnectionPool(url, username, password,
+                guaranteedConnections, maxConnections, waitTimeoutMillis, connectionBudget));
+    }
+
+    private DBConnectionPool getPartition(String name) {
+        DBConnectionPool partition = partitions.get(name);
+        if (partition == null) throw new IllegalArgumentException("Unknown partition " + name);
+        return partition;
+    }
+
     public Sql genSql() {
-        return Sql.of(dbConnectionPool, queryTimeout, devMode);
+        return Sql.of(dbConnectionPool, queryTimeout, devMode).withCoalescer(queryCoalescer);
+    }
+
+    public Sql genSql(String partition) {
+        return Sql.of(getPartition(partition), queryTimeout, devMode).withCoalescer(queryCoalescer);
+    }
+
+    public <R> CompiledQuery<R> compile(Sql sql, Class<R> resultType, Class<?>... parameterTypes) {
+        return new CompiledQuery<>(dbConnectionPool, queryTimeout, devMode, sql, resultType, parameterTypes);
+    }
+
+    public <R> MultiGet<R> genMultiGet(Sql sql, Class<R> resultType) {
+        return genMultiGet(sql, resultType, MULTI_GET_CHUNK_SIZE);
+    }
+
+    public <R> MultiGet<R> genMultiGet(Sql sql, Class<R> resultType, int chunkSize) {
+        int parallelism = Math.min(DB_EXECUTOR_THREADS, dbConnectionPool.getStats().maxPoolSize());
+        return new MultiGet<>(dbConnectionPool, dbExecutor, queryTimeout, devMode, sql, resultType, chunkSize, parallelism);
+    }
+
+    public SqlPipeline genPipeline() {
+        return new SqlPipeline(getPipelinePool(), queryTimeout, devMode);
+    }
+
+    // multi-statement connections live in their own partition of the budget so regular Sql never runs with allowMultiQueries
+    private DBConnectionPool getPipelinePool() {
+        DBConnectionPool pool = pipelinePool;
+        if (pool != null) return pool;
+        synchronized (this) {
+            if (pipelinePool == null) pipelinePool = new DBConnectionPool(url + MULTI_QUERIES_OPTION, username, password,
+                    PIPELINE_GUARANTEED_CONNECTIONS, PIPELINE_MAX_CONNECTIONS, PIPELINE_WAIT_TIMEOUT, connectionBudget);
+            return pipelinePool;
+        }
+    }
+
+    public WriteBehindBuffer genWriteBehind(String table, String keyColumn) {
+        return register(new WriteBehindBuffer(this, table, keyColumn));
+    }
+
+    public WriteBehindBuffer genWriteBehind(String table, String keyColumn, int flushThreshold, int maxPendingRows, long flushIntervalMillis) {
+        return register(new WriteBehindBuffer(this, table, keyColumn, flushThreshold, maxPendingRows, flushIntervalMillis));
+    }
+
+    private WriteBehindBuffer register(WriteBehindBuffer buffer) {
+        writeBehindBuffers.add(buffer);
+        return buffer;
+    }
+
+    public <R> CompletableFuture<R> runAsync(Function<Sql, R> query) {
+        CompletableFuture<R> result = new CompletableFuture<>();
+        QueryTracker tracker = QueryTracker.current();
+        dbConnectionPool.getConnectionAsync(dbExecutor).whenComplete((connection, e) -> {
+            if (e != null) {
+                result.completeExceptionally(e);
+                return;
+            }
+            try {
+                dbExecutor.execute(() -> {
+                    Sql sql = Sql.of(dbConnectionPool, queryTimeout, devMode, connection);
+                    try {
+                        result.complete(QueryTracker.callWithin(tracker, () -> query.apply(sql)));
+                    } catch (Throwable t) {
+                        result.completeExceptionally(t);
+                    } finally {
+                        sql.releaseReservedConnection();
+                    }
+                });
+            } catch (RejectedExecutionException re) {
+                dbConnectionPool.releaseConnection(connection);
+                result.completeExceptionally(re);
+            }
+        });
+        return result;
     }
 
     public void close() {
-        dbConnectionPool.closeAllConnections();
+        writeBehindBuffers.forEach(WriteBehindBuffer::close);
+        dbExecutor.shutdown();
+        partitions.values().forEach(DBConnectionPool::closeAllConnections);
+        if (pipelinePool != null) pipelinePool.closeAllConnections();
     }
 }
@@ -0,0 +1,191 @@
+package com.ll.simpleDb;
+
+import java.io.PrintStream;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+public final class SimpleDbLogger {
+    public enum Level {
+        DEBUG, INFO, WARN, ERROR
+    }
+
+    @FunctionalInterface
+    public interface LogSink {
+        void write(LogRecord record);
+    }
+
+    private static class Suppression {
+        private final AtomicLong windowStart;
+        private final AtomicLong suppressed = new AtomicLong(0);
+
+        private Suppression(long windowStart) {
+            this.windowStart = new AtomicLong(windowStart);
+        }
+    }
+
+    // keeps the type, SQLState and stack of a failure but drops its message, driver messages echo the literals of a query
+    private static final class RedactedError extends RuntimeException {
+        private RedactedError(Throwable error) {
+            super(error.getClass().getName() + (error instanceof SQLException e ? " (" + describe(e) + ")" : ""),
+                    error.getCause() == null ? null : new RedactedError(error.getCause()), false, true);
+            setStackTrace(error.getStackTrace());
+        }
+    }
+
+    public static final LogSink CONSOLE = SimpleDbLogger::writeConsole;
+    private static final int CAPACITY = 8192;
+    private static final long DRAIN_INTERVAL = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final long SUPPRESSION_WINDOW = TimeUnit.SECONDS.toNanos(1);
+    private static final int MAX_SUPPRESSION_KEYS = 1024;
+    private static final AtomicReferenceArray<LogRecord> RING = new AtomicReferenceArray<>(CAPACITY);
+    private static final AtomicLong HEAD = new AtomicLong(0);
+    private static final AtomicLong TAIL = new AtomicLong(0);
+    private static final AtomicLong DROPPED = new AtomicLong(0);
+    private static final Map<String, Suppression> SUPPRESSIONS = new ConcurrentHashMap<>();
+    private static final Thread DRAINER;
+    private static volatile LogSink sink = CONSOLE;
+    private static volatile Level level = Level.INFO;
+
+    static {
+        DRAINER = new Thread(SimpleDbLogger::drainLoop, "simpledb-logger");
+        DRAINER.setDaemon(true);
+        DRAINER.start();
+    }
+
+    private SimpleDbLogger() {
+    }
+
+    public static void setSink(LogSink sink) {
+        SimpleDbLogger.sink = sink == null ? CONSOLE : sink;
+    }
+
+    public static void setLevel(Level level) {
+        SimpleDbLogger.level = level;
+    }
+
+    public static long getDroppedCount() {
+        return DROPPED.get();
+    }
+
+    // waits until everything logged so far reached the sink, for shutdown hooks and tests
+    public static boolean flush(long timeoutMillis) {
+        long target = HEAD.get();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (TAIL.get() < target) {
+            if (System.nanoTime() >= deadline) return false;
+            LockSupport.unpark(DRAINER);
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+        return true;
+    }
+
+    static void debug(String event, String message) {
+        log(Level.DEBUG, event, message, null);
+    }
+
+    static void info(String event, String message) {
+        log(Level.INFO, event, message, null);
+    }
+
+    static void warn(String event, String message) {
+        log(Level.WARN, event, message, null);
+    }
+
+    static void error(String event, String message, Throwable error) {
+        log(Level.ERROR, event, message, error);
+    }
+
+    static String describe(Throwable error) {
+        for (Throwable t = error; t != null; t = t.getCause()) {
+            if (t instanceof SQLException e) return "SQLState %s, error %d".formatted(e.getSQLState(), e.getErrorCode());
+        }
+        return error.getClass().getSimpleName();
+    }
+
+    private static void log(Level recordLevel, String event, String message, Throwable error) {
+        if (recordLevel.compareTo(level) < 0) return;
+        long suppressed = 0;
+        if (recordLevel.compareTo(Level.WARN) >= 0) {
+            // messages carry ids and values, keying on them would let every distinct row through
+            suppressed = admit(error == null ? event : event + '|' + error.getClass().getName() + '|' + describe(error));
+            if (suppressed < 0) return;
+        }
+        offer(new LogRecord(System.currentTimeMillis(), recordLevel, event, message,
+                Thread.currentThread().getName(), error == null ? null : new RedactedError(error), suppressed));
+    }
+
+    // lets the first occurrence of a warning through per window and counts the duplicates it stands for
+    private static long admit(String key) {
+        long now = System.nanoTime();
+        if (SUPPRESSIONS.size() > MAX_SUPPRESSION_KEYS) SUPPRESSIONS.clear();
+        Suppression suppression = SUPPRESSIONS.computeIfAbsent(key, k -> new Suppression(now - SUPPRESSION_WINDOW));
+        long start = suppression.windowStart.get();
+        if (now - start < SUPPRESSION_WINDOW || !suppression.windowStart.compareAndSet(start, now)) {
+            suppression.suppressed.incrementAndGet();
+            return -1;
+        }
+        return suppression.suppressed.getAndSet(0);
+    }
+
+    // multi-producer ring, a full buffer drops the record instead of blocking the caller
+    private static void offer(LogRecord record) {
+        long seq;
+        do {
+            seq = HEAD.get();
+            if (seq - TAIL.get() >= CAPACITY) {
+                DROPPED.incrementAndGet();
+                return;
+            }
+        } while (!HEAD.compareAndSet(seq, seq + 1));
+        RING.set((int) (seq & (CAPACITY - 1)), record);
+    }
+
+    private static void drainLoop() {
+        long reportedDrops = 0;
+        while (true) {
+            long tail = TAIL.get();
+            int idx = (int) (tail & (CAPACITY - 1));
+            LogRecord record = RING.get(idx);
+            if (record == null) {
+                long dropped = DROPPED.get();
+                if (dropped != reportedDrops) {
+                    write(new LogRecord(System.currentTimeMillis(), Level.WARN, "log.dropped",
+                            "ring buffer full", DRAINER.getName(), null, dropped - reportedDrops));
+                    reportedDrops = dropped;
+                }
+                LockSupport.parkNanos(DRAIN_INTERVAL);
+                continue;
+            }
+            write(record);
+            RING.set(idx, null);
+            TAIL.lazySet(tail + 1);
+        }
+    }
+
+    private static void write(LogRecord record) {
+        try {
+            sink.write(record);
+        } catch (RuntimeException e) {
+            // a broken sink must not stop the drainer
+        }
+    }
+
+    private static void writeConsole(LogRecord record) {
+        PrintStream out = System.out;
+        StringBuilder line = new StringBuilder()
+                .append("ts=").append(Instant.ofEpochMilli(record.timestamp()))
+                .append(" level=").append(record.level())
+                .append(" event=").append(record.event())
+                .append(" thread=").append(record.thread())
+                .append(" msg=\"").append(record.message().replace("\"", "\\\"")).append('"');
+        if (record.suppressed() > 0) line.append(" suppressed=").append(record.suppressed());
+        out.println(line);
+        if (record.error() != null) record.error().printStackTrace(out);
+    }
+}
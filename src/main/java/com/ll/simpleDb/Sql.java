@@ -1,72 +1,290 @@
 package com.ll.simpleDb;
 
-import java.lang.reflect.Constructor;
-import java.lang.reflect.Field;
 import java.sql.*;
 import java.time.LocalDateTime;
 import java.util.*;
+import java.util.function.Function;
+import java.util.regex.Matcher;
 import java.util.stream.Collectors;
 
 public class Sql {
+    private static final int MAX_RETRIES = 2;
+    private static final long RETRY_BACKOFF = 50;
     private final DBConnectionPool dbConnectionPool;
     private final int queryTimeout;
     private final boolean devMode;
     private Connection connection;
+    private Connection reservedConnection;
+    private QueryCoalescer queryCoalescer;
     private final StringBuilder queryString;
+    private final StringBuilder queryShape;
+    private final StringBuilder preparedQuery;
+    private final List<Object> arguments;
+    private String compiledQueryString;
+    private ParameterBinder parameterBinder;
+    private Object[] parameters;
+    private int rowCount;
+    private long executionTime;
+    private long mappingTime;
+
+    @FunctionalInterface
+    private interface StatementHandler<R> {
+        R handle(PreparedStatement stmt) throws SQLException, ReflectiveOperationException;
+    }
+
+    @FunctionalInterface
+    interface ParameterBinder {
+        void bind(PreparedStatement stmt, Object[] parameters) throws SQLException;
+    }
+
+    @FunctionalInterface
+    interface ResultReader<R> {
+        R read(ResultSet rs) throws SQLException, ReflectiveOperationException;
+    }
 
     private Sql(DBConnectionPool dbConnectionPool, int queryTimeout, boolean devMode) {
         this.dbConnectionPool = dbConnectionPool;
         this.queryTimeout = queryTimeout;
         this.queryString = new StringBuilder();
+        this.queryShape = new StringBuilder();
+        this.preparedQuery = new StringBuilder();
+        this.arguments = new ArrayList<>();
         this.devMode = devMode;
     }
 
-    private void setConnection() {
+    private void setConnection() throws SQLException {
+        if (reservedConnection != null) {
+            connection = reservedConnection;
+            reservedConnection = null;
+            return;
+        }
         try {
             connection = dbConnectionPool.getConnection();
-        } catch (SQLException | InterruptedException e) {
-            dbConnectionPool.releaseConnection(connection);
-            throw new SQLRuntimeException("setConnection fail", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a connection", e);
         }
     }
 
-    private PreparedStatement getStmt() {
-        if (devMode) System.out.println(queryString.toString().trim());
+    private PreparedStatement getStmt(final int statementConstant) throws SQLException {
+        if (devMode) SimpleDbLogger.info("sql.query", getQueryShape());
         setConnection();
-        try {
-            PreparedStatement pStmt = connection.prepareStatement(queryString.toString().trim());
-            pStmt.setQueryTimeout(queryTimeout);
-            return pStmt;
+        PreparedStatement pStmt = connection.prepareStatement(getPreparedQuery(), statementConstant);
+        pStmt.setQueryTimeout(queryTimeout);
+        if (parameterBinder != null) parameterBinder.bind(pStmt, parameters);
+        else bindArguments(pStmt, 1);
+        return pStmt;
+    }
+
+    // arguments are always bound, the inlined queryString only describes the query for tracking
+    int bindArguments(PreparedStatement pStmt, int firstIndex) throws SQLException {
+        int idx = firstIndex;
+        for (Object o : getArguments()) pStmt.setObject(idx++, o);
+        return idx;
+    }
+
+    public static Sql of(DBConnectionPool dbConnectionPool, int queryTimeout, boolean devMode) {
+        return new Sql(dbConnectionPool, queryTimeout, devMode);
+    }
+
+    static Sql of(DBConnectionPool dbConnectionPool, int queryTimeout, boolean devMode, Connection reservedConnection) {
+        return new Sql(dbConnectionPool, queryTimeout, devMode).withReservedConnection(reservedConnection);
+    }
+
+    static Sql of(DBConnectionPool dbConnectionPool, int queryTimeout, boolean devMode,
+                  String compiledQueryString, ParameterBinder parameterBinder, Object[] parameters) {
+        Sql sql = new Sql(dbConnectionPool, queryTimeout, devMode);
+        sql.compiledQueryString = compiledQueryString;
+        sql.parameterBinder = parameterBinder;
+        sql.parameters = parameters;
+        return sql;
+    }
+
+    Sql withReservedConnection(Connection reservedConnection) {
+        this.reservedConnection = reservedConnection;
+        return this;
+    }
+
+    Sql withCoalescer(QueryCoalescer queryCoalescer) {
+        this.queryCoalescer = queryCoalescer;
+        return this;
+    }
+
+    void releaseReservedConnection() {
+        if (reservedConnection == null) return;
+        dbConnectionPool.releaseConnection(reservedConnection);
+        reservedConnection = null;
+    }
+
+    // budgets are checked on the caller's own thread, before a query can join a coalesced flight
+    private void trackQuery() {
+        if (QueryTracker.current() != null) QueryTracker.beforeQuery(getQueryShape(), describeQuery());
+    }
+
+    private <R> R execute(String terminal, final int statementConstant, boolean idempotent, StatementHandler<R> handler) {
+        for (int attempt = 0; ; attempt++) {
+            try {
+                return executeOnce(terminal, statementConstant, handler);
+            } catch (SQLException e) {
+                // only reads are retried, a write may have been applied before the connection died
+                boolean retry = idempotent && attempt < MAX_RETRIES && DBConnectionPool.isFatal(e);
+                if (!retry) {
+                    String message = "%s failed on %s: %s".formatted(terminal, getQueryShape(), SimpleDbLogger.describe(e));
+                    throw DBConnectionPool.isFatal(e) ? new ConnectionFailureException(message, e) : new SQLRuntimeException(message, e);
+                }
+                backoff(attempt);
+            }
+        }
+    }
+
+    private <R> R executeOnce(String terminal, final int statementConstant, StatementHandler<R> handler) throws SQLException {
+        SqlExecuteEvent event = new SqlExecuteEvent();
+        event.begin();
+        rowCount = 0;
+        executionTime = 0;
+        mappingTime = 0;
+        connection = null;
+        SQLException failure = null;
+        try (PreparedStatement stmt = getStmt(statementConstant)) {
+            return handler.handle(stmt);
         } catch (SQLException e) {
-            e.printStackTrace();
-            return null;
+            failure = e;
+            throw e;
+        } catch (ReflectiveOperationException e) {
+            throw new SQLRuntimeException("%s failed to map the result: %s".formatted(terminal, e.getMessage()), e);
+        } finally {
+            dbConnectionPool.releaseConnection(connection, failure);
+            QueryTracker.afterQuery(rowCount);
+            commitExecuteEvent(event, terminal, failure == null);
         }
     }
 
-    private PreparedStatement getStmt(final int statementConstant) {
-        if (devMode) System.out.println(queryString.toString().trim());
-        setConnection();
+    private static void backoff(int attempt) {
         try {
-            PreparedStatement pStmt = connection.prepareStatement(queryString.toString().trim(), statementConstant);
-            pStmt.setQueryTimeout(queryTimeout);
-            return pStmt;
-        } catch (SQLException e) {
-            e.printStackTrace();
-            return null;
+            Thread.sleep(RETRY_BACKOFF << attempt);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ConnectionFailureException("Interrupted while retrying", e);
         }
     }
 
-    public static Sql of(DBConnectionPool dbConnectionPool, int queryTimeout, boolean devMode) {
-        return new Sql(dbConnectionPool, queryTimeout, devMode);
+    private long executeUpdate(String terminal) {
+        trackQuery();
+        return execute(terminal, Statement.NO_GENERATED_KEYS, false, stmt -> {
+            long start = System.nanoTime();
+            long ret = stmt.executeUpdate();
+            executionTime = System.nanoTime() - start;
+            return ret;
+        });
+    }
+
+    private <R> R executeQuery(String terminal, ResultReader<R> reader) {
+        trackQuery();
+        return runQuery(terminal, reader);
+    }
+
+    // share hands every caller of a flight its own result, a copy unless the result is immutable
+    private <R> R executeSharedQuery(String terminal, Class<?> resultType, ResultReader<R> reader, Function<Object, R> share) {
+        trackQuery();
+        if (queryCoalescer == null) return runQuery(terminal, reader);
+        return queryCoalescer.execute(dbConnectionPool, terminal, resultType, getQueryShape(), getArguments(),
+                () -> runQuery(terminal, reader), share);
+    }
+
+    private static Map<String, Object> copyRow(Object row) {
+        Map<String, Object> copy = new HashMap<>();
+        ((Map<?, ?>) row).forEach((column, value) -> copy.put((String) column, value));
+        return copy;
+    }
+
+    private <R> R runQuery(String terminal, ResultReader<R> reader) {
+        return execute(terminal, Statement.NO_GENERATED_KEYS, true, stmt -> {
+            long start = System.nanoTime();
+            ResultSet rs = stmt.executeQuery();
+            long executed = System.nanoTime();
+            R ret = reader.read(rs);
+            executionTime = executed - start;
+            mappingTime = System.nanoTime() - executed;
+            return ret;
+        });
+    }
+
+    private void commitExecuteEvent(SqlExecuteEvent event, String terminal, boolean success) {
+        event.end();
+        if (!event.shouldCommit()) return;
+        event.terminal = terminal;
+        event.queryShape = getQueryShape();
+        event.executionTime = executionTime;
+        event.mappingTime = mappingTime;
+        event.rowCount = rowCount;
+        event.success = success;
+        event.commit();
+    }
+
+    String getQueryString() {
+        return compiledQueryString != null ? compiledQueryString : queryString.toString().trim();
+    }
+
+    String getQueryShape() {
+        return compiledQueryString != null ? compiledQueryString : queryShape.toString().trim();
+    }
+
+    String getPreparedQuery() {
+        return compiledQueryString != null ? compiledQueryString : preparedQuery.toString().trim();
+    }
+
+    List<Object> getArguments() {
+        return compiledQueryString != null ? Arrays.asList(parameters) : arguments;
+    }
+
+    private String describeQuery() {
+        return parameters == null ? getQueryString() : getQueryString() + Arrays.toString(parameters);
+    }
+
+    int getRowCount() {
+        return rowCount;
+    }
+
+    private boolean next(ResultSet rs) throws SQLException {
+        boolean hasNext = rs.next();
+        if (hasNext) rowCount++;
+        return hasNext;
     }
 
     public Sql append(String rawSql, Object... args) {
-        for (Object o : args) rawSql = rawSql.replaceFirst("[?]", "'" + o + "'");
+        if (compiledQueryString != null) throw new IllegalStateException("Compiled Sql can not be changed");
+        this.queryShape.append(' ').append(rawSql);
+        this.preparedQuery.append(' ').append(rawSql);
+        this.arguments.addAll(Arrays.asList(args));
+        for (Object o : args) rawSql = rawSql.replaceFirst("[?]", Matcher.quoteReplacement("'" + o + "'"));
         this.queryString.append(' ').append(rawSql);
         return this;
     }
 
+    public Sql appendSelect(Class<?> clazz) {
+        return appendSelect(EntityMapper.of(clazz).getColumnNames());
+    }
+
+    public Sql appendSelect(Class<?> clazz, String... fields) {
+        EntityMapper<?> mapper = EntityMapper.of(clazz);
+        for (String field : fields) {
+            if (!mapper.hasColumn(field))
+                throw new IllegalArgumentException("%s has no column field %s".formatted(clazz.getSimpleName(), field));
+        }
+        return appendSelect(Arrays.asList(fields));
+    }
+
+    private Sql appendSelect(List<String> columns) {
+        return append(columns.stream()
+                .map("`%s`"::formatted)
+                .collect(Collectors.joining(", ", "SELECT ", "")));
+    }
+
     public Sql appendIn(String rawSql, Collection<?> args) {
+        if (compiledQueryString != null) throw new IllegalStateException("Compiled Sql can not be changed");
+        this.queryShape.append(' ').append(rawSql.trim());
+        this.preparedQuery.append(' ').append(rawSql.trim().replace("?", String.join(", ", Collections.nCopies(args.size(), "?"))));
+        rawSql.trim().chars().filter(c -> c == '?').forEach(c -> arguments.addAll(args));
         String mappedSql = rawSql.trim().replace("?", args
                 .stream()
                 .map(o -> String.format("'%s'", o))
@@ -76,151 +294,149 @@ public class Sql {
     }
 
     public long insert() {
-        try (PreparedStatement stmt = getStmt(Statement.RETURN_GENERATED_KEYS)) {
+        trackQuery();
+        return execute("insert", Statement.RETURN_GENERATED_KEYS, false, stmt -> {
+            long start = System.nanoTime();
             stmt.executeUpdate();
+            executionTime = System.nanoTime() - start;
             ResultSet rs = stmt.getGeneratedKeys();
-            return rs.next() ? rs.getInt(1) : -1;
-        } catch (SQLException e) {
-            e.printStackTrace();
-            return -1;
-        } finally {
-            dbConnectionPool.releaseConnection(connection);
-        }
+            return rs.next() ? rs.getLong(1) : -1L;
+        });
     }
 
     public long update() {
-        try (PreparedStatement stmt = getStmt()) {
-            return stmt.executeUpdate();
-        } catch (Exception e) {
-            e.printStackTrace();
-            return -1;
-        } finally {
-            dbConnectionPool.releaseConnection(connection);
-        }
+        return executeUpdate("update");
     }
 
     public long delete() {
-        try (PreparedStatement stmt = getStmt()) {
-            return stmt.executeUpdate();
-        } catch (Exception e) {
-            e.printStackTrace();
-            return -1;
-        } finally {
-            dbConnectionPool.releaseConnection(connection);
-        }
+        return executeUpdate("delete");
     }
 
     public LocalDateTime selectDatetime() {
-        try (PreparedStatement stmt = getStmt()) {
-            ResultSet rs = stmt.executeQuery();
-            return rs.next() ? rs.getTimestamp(1).toLocalDateTime() : null;
-        } catch (Exception e) {
-            e.printStackTrace();
-            return null;
-        } finally {
-            dbConnectionPool.releaseConnection(connection);
-        }
+        return executeSharedQuery("selectDatetime", LocalDateTime.class, datetimeReader(), LocalDateTime.class::cast);
     }
 
     public long selectLong() {
-        try (PreparedStatement stmt = getStmt()) {
-            ResultSet rs = stmt.executeQuery();
-            return rs.next() ? rs.getLong(1) : -1;
-        } catch (Exception e) {
-            e.printStackTrace();
-            return -1;
-        } finally {
-            dbConnectionPool.releaseConnection(connection);
-        }
+        return executeSharedQuery("selectLong", Long.class, longReader(), Long.class::cast);
     }
 
     public String selectString() {
-        try (PreparedStatement stmt = getStmt()) {
-            ResultSet rs = stmt.executeQuery();
-            return rs.next() ? rs.getString(1) : null;
-        } catch (Exception e) {
-            e.printStackTrace();
-            return null;
-        } finally {
-            dbConnectionPool.releaseConnection(connection);
-        }
+        return executeSharedQuery("selectString", String.class, stringReader(), String.class::cast);
     }
 
     public Map<String, Object> selectRow() {
-        Map<String, Object> ret = new HashMap<>();
-        try (PreparedStatement stmt = getStmt()) {
-            ResultSet rs = stmt.executeQuery();
+        return executeSharedQuery("selectRow", Map.class, rowReader(), Sql::copyRow);
+    }
+
+    public <R> R selectRow(Class<R> clazz) {
+        EntityMapper<R> mapper = EntityMapper.of(clazz);
+        return executeSharedQuery("selectRow", clazz, rowReader(clazz), row -> mapper.copy(clazz.cast(row)));
+    }
+
+    public <R> List<R> selectRows(Class<R> clazz) {
+        return executeQuery("selectRows", rowsReader(clazz));
+    }
+
+    public List<Long> selectLongs() {
+        return executeQuery("selectLongs", longsReader());
+    }
+
+    public RowStore selectRowStore() {
+        return executeQuery("selectRowStore", rowStoreReader());
+    }
+
+    Map<Object, Object> selectMap() {
+        return executeQuery("selectMap", mapReader());
+    }
+
+    <R> R select(String terminal, ResultReader<R> reader) {
+        return executeQuery(terminal, reader);
+    }
+
+    ResultReader<LocalDateTime> datetimeReader() {
+        return rs -> next(rs) ? rs.getTimestamp(1).toLocalDateTime() : null;
+    }
+
+    ResultReader<Long> longReader() {
+        return rs -> next(rs) ? rs.getLong(1) : -1L;
+    }
+
+    ResultReader<String> stringReader() {
+        return rs -> next(rs) ? rs.getString(1) : null;
+    }
+
+    ResultReader<Map<String, Object>> rowReader() {
+        return rs -> {
+            Map<String, Object> ret = new HashMap<>();
             ResultSetMetaData metaData = rs.getMetaData();
-            while (rs.next()) {
+            while (next(rs)) {
                 for (int i = 0; i < metaData.getColumnCount(); i++) {
                     String column = metaData.getColumnName(i + 1);
                     ret.put(column, rs.getObject(column));
                 }
             }
             return ret;
-        } catch (Exception e) {
-            e.printStackTrace();
-            return Collections.emptyMap();
-        } finally {
-            dbConnectionPool.releaseConnection(connection);
-        }
+        };
     }
 
-    public <R> R selectRow(Class<R> clazz) {
-        try (PreparedStatement stmt = getStmt()) {
-            Constructor<?> constructor = clazz.getConstructor();
-            R ret = (R) constructor.newInstance();
-            ResultSet rs = stmt.executeQuery();
-            Field[] fields = clazz.getDeclaredFields();
-            while (rs.next()) {
-                for (Field f : fields) {
-                    f.setAccessible(true);
-                    f.set(ret, rs.getObject(f.getName()));
-                }
-            }
+    <R> ResultReader<R> rowReader(Class<R> clazz) {
+        EntityMapper<R> mapper = EntityMapper.of(clazz);
+        return rs -> {
+            EntityMapper<R>.Binder binder = mapper.binder(rs.getMetaData(), this::genLazySql);
+            R ret = binder.newInstance();
+            while (next(rs)) binder.mapInto(ret, rs);
             return ret;
-        } catch (Exception e) {
-            e.printStackTrace();
-            return null;
-        } finally {
-            dbConnectionPool.releaseConnection(connection);
-        }
+        };
     }
 
-    public <R> List<R> selectRows(Class<R> clazz) {
-        List<R> ret = new ArrayList<>();
-        try (PreparedStatement stmt = getStmt()) {
-            Constructor<?> constructor = clazz.getConstructor();
-            ResultSet rs = stmt.executeQuery();
-            Field[] fields = clazz.getDeclaredFields();
-            while (rs.next()) {
-                R obj = (R) constructor.newInstance();
-                for (Field f : fields) {
-                    f.setAccessible(true);
-                    f.set(obj, rs.getObject(f.getName()));
-                }
-                ret.add(obj);
-            }
+    <R> ResultReader<List<R>> rowsReader(Class<R> clazz) {
+        EntityMapper<R> mapper = EntityMapper.of(clazz);
+        return rs -> {
+            EntityMapper<R>.Binder binder = mapper.binder(rs.getMetaData(), this::genLazySql);
+            List<R> ret = new ArrayList<>();
+            while (next(rs)) ret.add(binder.map(rs));
             return ret;
-        } catch (Exception e) {
-            e.printStackTrace();
-            return Collections.emptyList();
-        } finally {
-            dbConnectionPool.releaseConnection(connection);
-        }
+        };
     }
 
-    public List<Long> selectLongs() {
-        List<Long> ret = new ArrayList<>();
-        try (PreparedStatement stmt = getStmt()) {
-            ResultSet rs = stmt.executeQuery();
-            while (rs.next()) ret.add(rs.getLong(1));
+    ResultReader<RowStore> rowStoreReader() {
+        return rs -> {
+            RowStore ret = new RowStore(rs.getMetaData());
+            while (next(rs)) ret.add(rs);
+            ret.complete();
             return ret;
-        } catch (Exception e) {
-            e.printStackTrace();
-            return Collections.emptyList();
-        } finally {
-            dbConnectionPool.releaseConnection(connection);
-        }
+        };
+    }
+
+    ResultReader<Map<Object, Object>> mapReader() {
+        return rs -> {
+            Map<Object, Object> ret = new HashMap<>();
+            while (next(rs)) ret.put(rs.getObject(1), rs.getObject(2));
+            return ret;
+        };
+    }
+
+    private Sql genLazySql() {
+        return new Sql(dbConnectionPool, queryTimeout, devMode);
+    }
+
+    <T> ResultReader<T> scalarReader(Class<T> type) {
+        return rs -> next(rs) ? rs.getObject(1, type) : null;
+    }
+
+    <T> ResultReader<List<T>> scalarsReader(Class<T> type) {
+        return rs -> {
+            List<T> ret = new ArrayList<>();
+            while (next(rs)) ret.add(rs.getObject(1, type));
+            return ret;
+        };
+    }
+
+    ResultReader<List<Long>> longsReader() {
+        return rs -> {
+            List<Long> ret = new ArrayList<>();
+            while (next(rs)) ret.add(rs.getLong(1));
+            return ret;
+        };
     }
 }
@@ -0,0 +1,30 @@
+package com.ll.simpleDb;
+
+import jdk.jfr.*;
+
+@Name("com.ll.simpleDb.SqlExecute")
+@Label("Sql Execute")
+@Description("One Sql terminal, from borrowing a connection to the mapped result")
+@Category({"NuMapper", "Sql"})
+@Enabled(false)
+class SqlExecuteEvent extends Event {
+    @Label("Terminal")
+    String terminal;
+
+    @Label("Query Shape")
+    String queryShape;
+
+    @Label("Execution Time")
+    @Timespan(Timespan.NANOSECONDS)
+    long executionTime;
+
+    @Label("Mapping Time")
+    @Timespan(Timespan.NANOSECONDS)
+    long mappingTime;
+
+    @Label("Row Count")
+    int rowCount;
+
+    @Label("Success")
+    boolean success;
+}
@@ -0,0 +1,176 @@
+package com.ll.simpleDb;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+public class SqlPipeline {
+    public static class Result<R> {
+        private R value;
+        private boolean done;
+
+        private void set(R value) {
+            this.value = value;
+            done = true;
+        }
+
+        public R get() {
+            if (!done) throw new IllegalStateException("Pipeline has not been executed");
+            return value;
+        }
+    }
+
+    @FunctionalInterface
+    private interface StepReader<R> {
+        R read(Statement stmt, boolean isResultSet) throws SQLException, ReflectiveOperationException;
+    }
+
+    private static class Step<R> {
+        private final Sql sql;
+        private final StepReader<R> reader;
+        private final Result<R> result;
+
+        Step(Sql sql, StepReader<R> reader) {
+            this.sql = sql;
+            this.reader = reader;
+            this.result = new Result<>();
+        }
+    }
+
+    private final DBConnectionPool dbConnectionPool;
+    private final int queryTimeout;
+    private final boolean devMode;
+    private final List<Step<?>> steps;
+
+    SqlPipeline(DBConnectionPool dbConnectionPool, int queryTimeout, boolean devMode) {
+        this.dbConnectionPool = dbConnectionPool;
+        this.queryTimeout = queryTimeout;
+        this.devMode = devMode;
+        this.steps = new ArrayList<>();
+    }
+
+    private <R> Result<R> add(Sql sql, StepReader<R> reader) {
+        Step<R> step = new Step<>(sql, reader);
+        steps.add(step);
+        return step.result;
+    }
+
+    private <R> Result<R> addQuery(Sql sql, Sql.ResultReader<R> reader) {
+        return add(sql, (stmt, isResultSet) -> {
+            if (!isResultSet) throw new SQLException("Expected a result set for: " + sql.getQueryString());
+            return reader.read(stmt.getResultSet());
+        });
+    }
+
+    public Result<Long> update(Sql sql) {
+        return add(sql, (stmt, isResultSet) -> (long) stmt.getUpdateCount());
+    }
+
+    public Result<Long> delete(Sql sql) {
+        return update(sql);
+    }
+
+    public Result<LocalDateTime> selectDatetime(Sql sql) {
+        return addQuery(sql, sql.datetimeReader());
+    }
+
+    public Result<Long> selectLong(Sql sql) {
+        return addQuery(sql, sql.longReader());
+    }
+
+    public Result<String> selectString(Sql sql) {
+        return addQuery(sql, sql.stringReader());
+    }
+
+    public Result<Map<String, Object>> selectRow(Sql sql) {
+        return addQuery(sql, sql.rowReader());
+    }
+
+    public <R> Result<R> selectRow(Sql sql, Class<R> clazz) {
+        return addQuery(sql, sql.rowReader(clazz));
+    }
+
+    public <R> Result<List<R>> selectRows(Sql sql, Class<R> clazz) {
+        return addQuery(sql, sql.rowsReader(clazz));
+    }
+
+    public Result<List<Long>> selectLongs(Sql sql) {
+        return addQuery(sql, sql.longsReader());
+    }
+
+    public Result<RowStore> selectRowStore(Sql sql) {
+        return addQuery(sql, sql.rowStoreReader());
+    }
+
+    public void execute() {
+        if (steps.isEmpty()) return;
+        String queryString = steps.stream()
+                .map(step -> stripSemicolon(step.sql.getPreparedQuery()))
+                .collect(Collectors.joining(";\n"));
+        if (devMode) SimpleDbLogger.info("sql.pipeline", steps.stream()
+                .map(step -> step.sql.getQueryShape())
+                .collect(Collectors.joining(";\n")));
+        steps.forEach(step -> QueryTracker.beforeQuery(step.sql.getQueryShape(), step.sql.getQueryString()));
+        SqlExecuteEvent event = new SqlExecuteEvent();
+        event.begin();
+
+        int rowCount = 0;
+        int idx = 0;
+        Connection connection = null;
+        SQLException failure = null;
+        try {
+            connection = dbConnectionPool.getConnection();
+            // arguments are bound, never inlined, since this connection accepts stacked statements
+            try (PreparedStatement stmt = connection.prepareStatement(queryString)) {
+                stmt.setQueryTimeout(queryTimeout);
+                int parameterIndex = 1;
+                for (Step<?> step : steps) parameterIndex = step.sql.bindArguments(stmt, parameterIndex);
+                boolean isResultSet = stmt.execute();
+                for (; idx < steps.size(); idx++) {
+                    if (idx > 0) isResultSet = stmt.getMoreResults();
+                    rowCount += read(steps.get(idx), stmt, isResultSet);
+                }
+            }
+        } catch (SQLException e) {
+            failure = e;
+            String shape = idx < steps.size() ? steps.get(idx).sql.getQueryShape() : "";
+            String message = "pipeline failed at statement %d on %s: %s".formatted(idx + 1, shape, SimpleDbLogger.describe(e));
+            throw DBConnectionPool.isFatal(e) ? new ConnectionFailureException(message, e) : new SQLRuntimeException(message, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ConnectionFailureException("Interrupted while waiting for a connection", e);
+        } catch (ReflectiveOperationException e) {
+            throw new SQLRuntimeException("pipeline failed to map statement %d: %s".formatted(idx + 1, e.getMessage()), e);
+        } finally {
+            dbConnectionPool.releaseConnection(connection, failure);
+            QueryTracker.afterQuery(rowCount);
+            commitExecuteEvent(event, rowCount, idx == steps.size());
+        }
+    }
+
+    private void commitExecuteEvent(SqlExecuteEvent event, int rowCount, boolean success) {
+        event.end();
+        if (!event.shouldCommit()) return;
+        event.terminal = "pipeline";
+        event.queryShape = steps.stream().map(step -> step.sql.getQueryShape()).collect(Collectors.joining(";\n"));
+        event.rowCount = rowCount;
+        event.success = success;
+        event.commit();
+    }
+
+    private <R> int read(Step<R> step, Statement stmt, boolean isResultSet) throws SQLException, ReflectiveOperationException {
+        int before = step.sql.getRowCount();
+        step.result.set(step.reader.read(stmt, isResultSet));
+        return step.sql.getRowCount() - before;
+    }
+
+    private static String stripSemicolon(String queryString) {
+        return queryString.endsWith(";") ? queryString.substring(0, queryString.length() - 1) : queryString;
+    }
+}
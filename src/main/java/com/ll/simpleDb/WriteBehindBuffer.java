@@ -0,0 +1,273 @@
+package com.ll.simpleDb;
+
+import java.sql.SQLException;
+import java.sql.SQLTransientException;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+public class WriteBehindBuffer implements AutoCloseable {
+    private static class PendingRow {
+        private final Map<String, Long> increments = new TreeMap<>();
+        private final Map<String, Object> assignments = new TreeMap<>();
+
+        // a column is either incremented or assigned: set replaces a pending increment,
+        // increment adds to a pending integral assignment
+        private void increment(String column, long delta) {
+            if (!assignments.containsKey(column)) {
+                increments.merge(column, delta, Long::sum);
+                return;
+            }
+            Object value = assignments.get(column);
+            if (!(value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte))
+                throw new IllegalArgumentException("Can not increment %s after setting it to %s".formatted(column, value));
+            assignments.put(column, ((Number) value).longValue() + delta);
+        }
+
+        private void set(String column, Object value) {
+            increments.remove(column);
+            assignments.put(column, value);
+        }
+
+        private boolean isEmpty() {
+            return increments.isEmpty() && assignments.isEmpty();
+        }
+
+        private void mergeOlder(PendingRow older) {
+            PendingRow merged = new PendingRow();
+            merged.increments.putAll(older.increments);
+            merged.assignments.putAll(older.assignments);
+            increments.forEach(merged::increment);
+            assignments.forEach(merged::set);
+            increments.clear();
+            increments.putAll(merged.increments);
+            assignments.clear();
+            assignments.putAll(merged.assignments);
+        }
+
+        private String signature() {
+            return increments.keySet() + "|" + assignments.keySet();
+        }
+    }
+
+    private static final int DEFAULT_FLUSH_THRESHOLD = 500;
+    private static final int DEFAULT_MAX_PENDING_ROWS = 5000;
+    private static final long DEFAULT_FLUSH_INTERVAL = 1000;
+    private final SimpleDb simpleDb;
+    private final String table;
+    private final String keyColumn;
+    private final int flushThreshold;
+    private final int maxPendingRows;
+    private final ScheduledExecutorService flusher;
+    private final Object flushLock;
+    private final AtomicBoolean flushScheduled;
+    private boolean closed;
+    private Map<Object, PendingRow> pendingRows;
+    private int inFlightRows;
+
+    WriteBehindBuffer(SimpleDb simpleDb, String table, String keyColumn) {
+        this(simpleDb, table, keyColumn, DEFAULT_FLUSH_THRESHOLD, DEFAULT_MAX_PENDING_ROWS, DEFAULT_FLUSH_INTERVAL);
+    }
+
+    WriteBehindBuffer(SimpleDb simpleDb, String table, String keyColumn, int flushThreshold, int maxPendingRows, long flushIntervalMillis) {
+        if (flushThreshold > maxPendingRows)
+            throw new IllegalArgumentException("flushThreshold must not exceed maxPendingRows");
+        this.simpleDb = simpleDb;
+        this.table = table;
+        this.keyColumn = keyColumn;
+        this.flushThreshold = flushThreshold;
+        this.maxPendingRows = maxPendingRows;
+        flushLock = new Object();
+        flushScheduled = new AtomicBoolean(false);
+        pendingRows = new LinkedHashMap<>();
+        flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "write-behind-" + table);
+            thread.setDaemon(true);
+            return thread;
+        });
+        flusher.scheduleWithFixedDelay(this::flushQuietly, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void increment(Object key, String column, long delta) {
+        enqueue(key, row -> row.increment(column, delta));
+    }
+
+    public void set(Object key, String column, Object value) {
+        enqueue(key, row -> row.set(column, value));
+    }
+
+    private void enqueue(Object key, Consumer<PendingRow> update) {
+        int size;
+        while ((size = tryEnqueue(key, update)) < 0) {
+            // backpressure: the writer flushes itself instead of growing the buffer past its bound
+            try {
+                flush();
+            } catch (SQLException e) {
+                throw new SQLRuntimeException("Write-behind flush failed", e);
+            }
+        }
+        if (size >= flushThreshold && flushScheduled.compareAndSet(false, true)) {
+            try {
+                flusher.execute(() -> {
+                    flushScheduled.set(false);
+                    flushQuietly();
+                });
+            } catch (RejectedExecutionException e) {
+                // closing, the row was admitted before that so the final flush writes it
+                flushScheduled.set(false);
+            }
+        }
+    }
+
+    // rows of a running flush still count against the bound, a failed flush puts them back
+    private synchronized int tryEnqueue(Object key, Consumer<PendingRow> update) {
+        if (closed) throw new IllegalStateException("WriteBehindBuffer is closed");
+        if (pendingRows.size() + inFlightRows >= maxPendingRows && !pendingRows.containsKey(key)) return -1;
+        PendingRow row = pendingRows.computeIfAbsent(key, k -> new PendingRow());
+        try {
+            update.accept(row);
+        } catch (RuntimeException e) {
+            if (row.isEmpty()) pendingRows.remove(key);
+            throw e;
+        }
+        return pendingRows.size();
+    }
+
+    public synchronized int getPendingCount() {
+        return pendingRows.size();
+    }
+
+    public void flush() throws SQLException {
+        synchronized (flushLock) {
+            Map<Object, PendingRow> batch;
+            synchronized (this) {
+                if (pendingRows.isEmpty()) return;
+                batch = pendingRows;
+                pendingRows = new LinkedHashMap<>();
+                inFlightRows = batch.size();
+            }
+
+            Deque<List<Map.Entry<Object, PendingRow>>> chunks = chunk(batch);
+            try {
+                while (!chunks.isEmpty()) {
+                    List<Map.Entry<Object, PendingRow>> chunk = chunks.peekFirst();
+                    try {
+                        write(chunk);
+                        chunks.pollFirst();
+                    } catch (SQLException e) {
+                        if (isRetryable(e)) throw e;
+                        chunks.pollFirst();
+                        if (chunk.size() > 1) {
+                            // a data error fails the whole statement, the rows are retried one by one to find the bad ones
+                            for (int i = chunk.size() - 1; i >= 0; i--) chunks.addFirst(List.of(chunk.get(i)));
+                        } else {
+                            SimpleDbLogger.error("writebehind.drop", "Dropped a row for %s: %s"
+                                    .formatted(table, SimpleDbLogger.describe(e)), e);
+                        }
+                    }
+                }
+            } catch (SQLException | RuntimeException e) {
+                requeue(chunks);
+                throw e;
+            } finally {
+                synchronized (this) {
+                    inFlightRows = 0;
+                }
+            }
+        }
+    }
+
+    // only a lost connection or a transient error (timeout, deadlock) can succeed on a later flush
+    private static boolean isRetryable(SQLException e) {
+        if (DBConnectionPool.isFatal(e)) return true;
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof SQLTransientException || t instanceof InterruptedException) return true;
+        }
+        return false;
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (SQLException | RuntimeException e) {
+            // a scheduled task that throws is never run again
+            SimpleDbLogger.error("writebehind.flush", "Write-behind flush failed for " + table, e);
+        }
+    }
+
+    private Deque<List<Map.Entry<Object, PendingRow>>> chunk(Map<Object, PendingRow> batch) {
+        Deque<List<Map.Entry<Object, PendingRow>>> chunks = new ArrayDeque<>();
+        batch.entrySet().stream()
+                .collect(Collectors.groupingBy(e -> e.getValue().signature(), LinkedHashMap::new, Collectors.toList()))
+                .values()
+                .forEach(group -> {
+                    for (int from = 0; from < group.size(); from += flushThreshold) {
+                        chunks.add(group.subList(from, Math.min(from + flushThreshold, group.size())));
+                    }
+                });
+        return chunks;
+    }
+
+    private synchronized void requeue(Collection<List<Map.Entry<Object, PendingRow>>> unwritten) {
+        unwritten.forEach(chunk -> chunk.forEach(e -> {
+            try {
+                pendingRows.computeIfAbsent(e.getKey(), k -> new PendingRow()).mergeOlder(e.getValue());
+            } catch (IllegalArgumentException iae) {
+                SimpleDbLogger.error("writebehind.drop", "Dropped an unwritten row for %s: %s".formatted(table, iae.getMessage()), null);
+            }
+        }));
+    }
+
+    private void write(List<Map.Entry<Object, PendingRow>> chunk) throws SQLException {
+        PendingRow shape = chunk.get(0).getValue();
+        List<Object> args = new ArrayList<>();
+        for (Map.Entry<Object, PendingRow> entry : chunk) {
+            args.add(entry.getKey());
+            args.addAll(entry.getValue().increments.values());
+            args.addAll(entry.getValue().assignments.values());
+        }
+        simpleDb.runUpdate(upsertSql(shape, chunk.size()), args.toArray());
+    }
+
+    private String upsertSql(PendingRow shape, int rowCount) {
+        List<String> columns = new ArrayList<>();
+        columns.add(keyColumn);
+        columns.addAll(shape.increments.keySet());
+        columns.addAll(shape.assignments.keySet());
+
+        String placeholders = columns.stream().map(c -> "?").collect(Collectors.joining(", ", "(", ")"));
+        String updates = columns.stream()
+                .skip(1)
+                .map(c -> shape.increments.containsKey(c)
+                        ? "`%s` = `%s` + VALUES(`%s`)".formatted(c, c, c)
+                        : "`%s` = VALUES(`%s`)".formatted(c, c))
+                .collect(Collectors.joining(", "));
+
+        return "INSERT INTO `%s` (%s) VALUES %s ON DUPLICATE KEY UPDATE %s".formatted(
+                table,
+                columns.stream().map("`%s`"::formatted).collect(Collectors.joining(", ")),
+                String.join(", ", Collections.nCopies(rowCount, placeholders)),
+                updates);
+    }
+
+    @Override
+    public void close() {
+        // once closed is set under the buffer's monitor no writer can add a row the final flush would miss
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+        }
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(DEFAULT_FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flushQuietly();
+    }
+}
@@ -0,0 +1,108 @@
+package com.ll.simpleDb;
+
+import com.ll.Article;
+import org.junit.jupiter.api.*;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.IntStream;
+import java.util.stream.LongStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.junit.jupiter.api.TestInstance.Lifecycle.PER_CLASS;
+
+@TestInstance(PER_CLASS)
+class ShardedSimpleDbTest {
+    private static final int SHARD_COUNT = 3;
+    private ShardedSimpleDb shardedDb;
+
+    @BeforeAll
+    public void beforeAll() {
+        SimpleDb adminDb = new SimpleDb("localhost", "root", "", "simpleDb__test");
+        IntStream.range(0, SHARD_COUNT)
+                .forEach(i -> adminDb.run("CREATE DATABASE IF NOT EXISTS simpleDb__test_shard%d".formatted(i)));
+        adminDb.close();
+
+        shardedDb = new ShardedSimpleDb(IntStream.range(0, SHARD_COUNT)
+                .mapToObj(i -> new SimpleDb("localhost", "root", "", "simpleDb__test_shard%d".formatted(i)))
+                .toList(), ShardStrategy.hash());
+        shardedDb.setDevMode(true);
+
+        shardedDb.runOnAll("DROP TABLE IF EXISTS article");
+        shardedDb.runOnAll("""
+                CREATE TABLE article (
+                    id INT UNSIGNED NOT NULL,
+                    PRIMARY KEY(id),
+                    createdDate DATETIME NOT NULL,
+                    modifiedDate DATETIME NOT NULL,
+                    title VARCHAR(100) NOT NULL,
+                    `body` TEXT NOT NULL,
+                    isBlind BIT(1) NOT NULL DEFAULT 0
+                )
+                """);
+    }
+
+    @BeforeEach
+    public void beforeEach() {
+        shardedDb.runOnAll("TRUNCATE article");
+        LongStream.rangeClosed(1, 12).forEach(id -> shardedDb.genSql(id)
+                .append("INSERT INTO article")
+                .append("SET id = ?", id)
+                .append(", createdDate = NOW()")
+                .append(", modifiedDate = NOW()")
+                .append(", title = ?", "제목%d".formatted(id))
+                .append(", body = ?", "내용%d".formatted(id))
+                .update());
+    }
+
+    @AfterAll
+    public void afterAll() {
+        shardedDb.close();
+    }
+
+    @Test
+    @DisplayName("SELECT ROW routed by shard key")
+    void selectRowByShardKey() {
+        Article article = shardedDb.genSql(7L)
+                .append("SELECT * FROM article WHERE id = ?", 7L)
+                .selectRow(Article.class);
+
+        assertThat(article.getId()).isEqualTo(7L);
+        assertThat(article.getTitle()).isEqualTo("제목7");
+    }
+
+    @Test
+    @DisplayName("rows are spread over every shard")
+    void rowsSpreadOverShards() {
+        List<Long> counts = shardedDb.scatter(sql -> sql.append("SELECT COUNT(*) FROM article").selectLong());
+
+        assertThat(counts).hasSize(SHARD_COUNT).allMatch(count -> count > 0);
+        assertThat(shardedDb.selectLongSum(sql -> sql.append("SELECT COUNT(*) FROM article").selectLong()))
+                .isEqualTo(12);
+    }
+
+    @Test
+    @DisplayName("SELECT ROWS scatter-gather with merge, sort and limit")
+    void selectRowsScatterGather() {
+        List<Article> articles = shardedDb.selectRows(sql -> sql
+                        .append("SELECT * FROM article")
+                        .append("ORDER BY id DESC")
+                        .append("LIMIT 5")
+                        .selectRows(Article.class),
+                Comparator.comparingLong(Article::getId).reversed(), 5);
+
+        assertThat(articles).extracting(Article::getId).containsExactly(12L, 11L, 10L, 9L, 8L);
+    }
+
+    @Test
+    @DisplayName("hash routing depends on the key value, not its boxed type")
+    void hashRoutingByValue() {
+        ShardStrategy hash = ShardStrategy.hash();
+
+        assertThat(hash.shardOf(-1, SHARD_COUNT)).isEqualTo(hash.shardOf(-1L, SHARD_COUNT));
+        assertThat(hash.shardOf((short) 7, SHARD_COUNT)).isEqualTo(hash.shardOf(7L, SHARD_COUNT));
+        assertThatThrownBy(() -> hash.shardOf(new Object(), SHARD_COUNT))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+}
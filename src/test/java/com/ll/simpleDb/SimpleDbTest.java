@@ -1,22 +1,43 @@
 package com.ll.simpleDb;
 
 import com.ll.Article;
+import jdk.jfr.Configuration;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
 import org.junit.jupiter.api.*;
+import org.openjdk.jol.info.GraphLayout;
+
+import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
 
 import java.time.LocalDateTime;
 import java.time.temporal.ChronoUnit;
 import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.IntStream;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 import static org.junit.jupiter.api.TestInstance.Lifecycle.PER_CLASS;
 
 @TestInstance(PER_CLASS)
 class SimpleDbTest {
     private SimpleDb simpleDb;
 
+    public static class ArticleSummary {
+        private long id;
+        private String title;
+        @LazyLoad(table = "article")
+        private Lazy<String> body;
+    }
+
     @BeforeAll
     public void beforeAll() {
         simpleDb = new SimpleDb("localhost", "root", "", "simpleDb__test");
@@ -484,4 +505,618 @@ class SimpleDbTest {
         System.out.println("count(): " + count);
         assertThat(count).isGreaterThan(199);
     }
+
+    @Test
+    @DisplayName("SELECT ASYNC without blocking caller on pool exhaustion")
+    void selectAsync() throws InterruptedException {
+        List<CompletableFuture<Long>> futures = IntStream.range(0, 100)
+                .mapToObj(i -> simpleDb.runAsync(sql -> sql
+                        .append("SELECT COUNT(*)")
+                        .append("FROM article")
+                        .selectLong()))
+                .toList();
+
+        CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new)).join();
+
+        futures.forEach(future -> assertThat(future.join()).isEqualTo(6));
+
+        // every connection of the budget is busy, the caller still returns at once
+        SimpleDb exhaustedDb = new SimpleDb("localhost", "root", "", "simpleDb__test");
+        try {
+            Thread[] threads = new Thread[10];
+            for (int i = 0; i < threads.length; i++) {
+                threads[i] = new Thread(() -> exhaustedDb.genSql().append("SELECT SLEEP(?)", 0.5).selectLong());
+                threads[i].start();
+            }
+            Thread.sleep(200);
+            assertThat(exhaustedDb.getPoolStats().availableConnections()).isZero();
+
+            long start = System.nanoTime();
+            CompletableFuture<Long> future = exhaustedDb.runAsync(sql -> sql.append("SELECT COUNT(*) FROM article").selectLong());
+            assertThat(System.nanoTime() - start).isLessThan(50_000_000L);
+            assertThat(future).isNotDone();
+            assertThat(future.join()).isEqualTo(6);
+        } finally {
+            exhaustedDb.close();
+        }
+    }
+
+    @Test
+    @DisplayName("QUERY TRACKER detects N+1")
+    void queryTrackerNPlusOne() {
+        try (QueryTracker tracker = QueryTracker.start()) {
+            List<Long> ids = simpleDb.genSql()
+                    .append("SELECT id FROM article ORDER BY id ASC")
+                    .selectLongs();
+
+            ids.forEach(id -> simpleDb.genSql()
+                    .append("SELECT * FROM article WHERE id = ?", id)
+                    .selectRow(Article.class));
+
+            assertThat(tracker.getQueryCount()).isEqualTo(7);
+            assertThat(tracker.getRoundTripCount()).isEqualTo(7);
+            assertThat(tracker.getRowCount()).isEqualTo(12);
+            assertThat(tracker.getNPlusOneSuspects())
+                    .containsEntry("SELECT * FROM article WHERE id = ?", 6);
+        }
+    }
+
+    @Test
+    @DisplayName("QUERY TRACKER fails over budget")
+    void queryTrackerBudget() {
+        try (QueryTracker ignored = QueryTracker.start(1, QueryTracker.BudgetPolicy.FAIL)) {
+            simpleDb.genSql().append("SELECT COUNT(*) FROM article").selectLong();
+
+            assertThatThrownBy(() -> simpleDb.genSql().append("SELECT COUNT(*) FROM article").selectLong())
+                    .isInstanceOf(QueryBudgetExceededException.class);
+        }
+    }
+
+    @Test
+    @DisplayName("WRITE BEHIND coalesces counter increments")
+    void writeBehindCoalesces() throws Exception {
+        simpleDb.run("DROP TABLE IF EXISTS article_stat");
+        simpleDb.run("""
+                CREATE TABLE article_stat (
+                    articleId INT UNSIGNED NOT NULL,
+                    PRIMARY KEY(articleId),
+                    viewCount BIGINT NOT NULL DEFAULT 0,
+                    lastViewedDate DATETIME NULL
+                )
+                """);
+
+        WriteBehindBuffer buffer = simpleDb.genWriteBehind("article_stat", "articleId", 100, 1000, 60_000);
+        LocalDateTime lastViewedDate = LocalDateTime.now().withNano(0);
+        IntStream.range(0, 300).forEach(i -> {
+            buffer.increment(i % 3 + 1, "viewCount", 1);
+            buffer.set(i % 3 + 1, "lastViewedDate", lastViewedDate);
+        });
+
+        assertThat(buffer.getPendingCount()).isEqualTo(3);
+        buffer.flush();
+        assertThat(buffer.getPendingCount()).isZero();
+
+        buffer.increment(1, "viewCount", 5);
+        buffer.close();
+
+        assertThat(simpleDb.genSql()
+                .append("SELECT viewCount FROM article_stat WHERE articleId = ?", 1)
+                .selectLong()).isEqualTo(105);
+        assertThat(simpleDb.genSql()
+                .append("SELECT SUM(viewCount) FROM article_stat")
+                .selectLong()).isEqualTo(305);
+        assertThat(simpleDb.genSql()
+                .append("SELECT lastViewedDate FROM article_stat WHERE articleId = ?", 3)
+                .selectDatetime()).isEqualTo(lastViewedDate);
+    }
+
+    @Test
+    @DisplayName("WRITE BEHIND close writes every increment it admitted")
+    void writeBehindCloseRace() throws Exception {
+        simpleDb.run("DROP TABLE IF EXISTS article_stat");
+        simpleDb.run("""
+                CREATE TABLE article_stat (
+                    articleId INT UNSIGNED NOT NULL,
+                    PRIMARY KEY(articleId),
+                    viewCount BIGINT NOT NULL DEFAULT 0
+                )
+                """);
+
+        WriteBehindBuffer buffer = simpleDb.genWriteBehind("article_stat", "articleId", 10, 20, 10);
+        AtomicLong admitted = new AtomicLong();
+        Thread[] writers = new Thread[4];
+        for (int i = 0; i < writers.length; i++) {
+            writers[i] = new Thread(() -> {
+                for (int n = 0; ; n++) {
+                    try {
+                        buffer.increment(n % 50 + 1, "viewCount", 1);
+                    } catch (IllegalStateException e) {
+                        return;
+                    }
+                    admitted.incrementAndGet();
+                }
+            });
+            writers[i].start();
+        }
+        Thread.sleep(300);
+        buffer.close();
+        for (Thread writer : writers) {
+            writer.join();
+        }
+
+        assertThat(buffer.getPendingCount()).isZero();
+        assertThat(simpleDb.genSql()
+                .append("SELECT SUM(viewCount) FROM article_stat")
+                .selectLong()).isEqualTo(admitted.get());
+    }
+
+    @Test
+    @DisplayName("WRITE BEHIND merges set with increment and drops rows failing on data errors")
+    void writeBehindDropsBadRows() throws Exception {
+        simpleDb.run("DROP TABLE IF EXISTS article_stat");
+        simpleDb.run("""
+                CREATE TABLE article_stat (
+                    articleId INT UNSIGNED NOT NULL,
+                    PRIMARY KEY(articleId),
+                    viewCount BIGINT NOT NULL DEFAULT 0,
+                    label VARCHAR(5) NULL
+                )
+                """);
+
+        WriteBehindBuffer buffer = simpleDb.genWriteBehind("article_stat", "articleId", 100, 1000, 60_000);
+        IntStream.rangeClosed(1, 4).forEach(id -> buffer.set(id, "label", "ok"));
+        buffer.set(5, "label", "much too long");
+        buffer.increment(6, "viewCount", 2);
+        buffer.set(6, "viewCount", 10L);
+        buffer.increment(6, "viewCount", 1);
+        buffer.set(7, "label", "x");
+        assertThatThrownBy(() -> buffer.increment(7, "label", 1))
+                .isInstanceOf(IllegalArgumentException.class);
+
+        buffer.flush();
+        buffer.close();
+
+        assertThat(simpleDb.genSql()
+                .append("SELECT COUNT(*) FROM article_stat WHERE label = ?", "ok")
+                .selectLong()).isEqualTo(4);
+        assertThat(simpleDb.genSql()
+                .append("SELECT COUNT(*) FROM article_stat WHERE articleId = ?", 5)
+                .selectLong()).isZero();
+        assertThat(simpleDb.genSql()
+                .append("SELECT viewCount FROM article_stat WHERE articleId = ?", 6)
+                .selectLong()).isEqualTo(11);
+    }
+
+    @Test
+    @DisplayName("PIPELINE runs several Sql in one round trip")
+    void pipeline() {
+        SqlPipeline pipeline = simpleDb.genPipeline();
+
+        SqlPipeline.Result<Long> count = pipeline.selectLong(simpleDb.genSql()
+                .append("SELECT COUNT(*)")
+                .append("FROM article"));
+        SqlPipeline.Result<Long> affectedRowsCount = pipeline.update(simpleDb.genSql()
+                .append("UPDATE article")
+                .append("SET title = ?", "제목 new")
+                .append("WHERE id = ?", 1));
+        SqlPipeline.Result<Article> article = pipeline.selectRow(simpleDb.genSql()
+                .append("SELECT * FROM article WHERE id = ?", 1), Article.class);
+        SqlPipeline.Result<List<Article>> articles = pipeline.selectRows(simpleDb.genSql()
+                .append("SELECT * FROM article ORDER BY id ASC LIMIT 3"), Article.class);
+
+        try (QueryTracker tracker = QueryTracker.start()) {
+            pipeline.execute();
+
+            assertThat(tracker.getQueryCount()).isEqualTo(4);
+            assertThat(tracker.getRoundTripCount()).isEqualTo(1);
+        }
+
+        assertThat(count.get()).isEqualTo(6);
+        assertThat(affectedRowsCount.get()).isEqualTo(1);
+        assertThat(article.get().getTitle()).isEqualTo("제목 new");
+        assertThat(articles.get()).extracting(Article::getId).containsExactly(1L, 2L, 3L);
+    }
+
+    @Test
+    @DisplayName("PIPELINE binds arguments instead of inlining them")
+    void pipelineQuotedArgument() {
+        String title = "x'; DELETE FROM article; -- ";
+        SqlPipeline pipeline = simpleDb.genPipeline();
+
+        pipeline.update(simpleDb.genSql()
+                .append("UPDATE article")
+                .append("SET title = ?", title)
+                .append("WHERE id = ?", 1));
+        SqlPipeline.Result<String> storedTitle = pipeline.selectString(simpleDb.genSql()
+                .append("SELECT title FROM article WHERE id = ?", 1));
+        SqlPipeline.Result<Long> count = pipeline.selectLong(simpleDb.genSql()
+                .append("SELECT COUNT(*) FROM article"));
+        pipeline.execute();
+
+        assertThat(storedTitle.get()).isEqualTo(title);
+        assertThat(count.get()).isEqualTo(6);
+    }
+
+    @Test
+    @DisplayName("JFR events with numapper.jfc")
+    void jfrEvents() throws Exception {
+        Configuration configuration = Configuration.create(
+                new InputStreamReader(getClass().getResourceAsStream("/numapper.jfc")));
+        Path dump = Files.createTempFile("numapper", ".jfr");
+
+        try (Recording recording = new Recording(configuration)) {
+            recording.start();
+            simpleDb.genSql()
+                    .append("SELECT * FROM article ORDER BY id ASC LIMIT 3")
+                    .selectRows(Article.class);
+            recording.stop();
+            recording.dump(dump);
+        }
+
+        List<RecordedEvent> events = RecordingFile.readAllEvents(dump);
+        assertThat(events).anyMatch(e -> e.getEventType().getName().equals("com.ll.simpleDb.ConnectionBorrow"));
+        assertThat(events)
+                .filteredOn(e -> e.getEventType().getName().equals("com.ll.simpleDb.SqlExecute"))
+                .anyMatch(e -> e.getString("terminal").equals("selectRows") && e.getInt("rowCount") == 3);
+    }
+
+    @Test
+    @DisplayName("SELECT ROWS with projected fields")
+    void selectProjection() {
+        List<Article> articles = simpleDb.genSql()
+                .appendSelect(Article.class, "id", "title")
+                .append("FROM article")
+                .append("ORDER BY id ASC")
+                .selectRows(Article.class);
+
+        assertThat(articles).hasSize(6);
+        assertThat(articles.get(0).getTitle()).isEqualTo("제목1");
+        assertThat(articles.get(0).getBody()).isNull();
+    }
+
+    @Test
+    @DisplayName("SELECT ROWS with lazy field loaded in one batch")
+    void selectLazy() {
+        try (QueryTracker tracker = QueryTracker.start()) {
+            List<ArticleSummary> summaries = simpleDb.genSql()
+                    .appendSelect(ArticleSummary.class)
+                    .append("FROM article")
+                    .append("ORDER BY id ASC")
+                    .selectRows(ArticleSummary.class);
+
+            assertThat(tracker.getQueryCount()).isEqualTo(1);
+            assertThat(summaries.get(0).body.isLoaded()).isFalse();
+
+            assertThat(summaries.get(2).body.get()).isEqualTo("내용3");
+            assertThat(summaries).allMatch(summary -> summary.body.isLoaded());
+            assertThat(summaries.get(5).body.get()).isEqualTo("내용6");
+            assertThat(tracker.getQueryCount()).isEqualTo(2);
+        }
+    }
+
+    @Test
+    @DisplayName("SELECT coalesced for identical concurrent queries")
+    void selectCoalesced() throws InterruptedException {
+        simpleDb.setCoalescing(true);
+        try {
+            Thread[] threads = new Thread[50];
+            for (int i = 0; i < threads.length; i++) {
+                threads[i] = new Thread(() -> {
+                    long count = simpleDb.genSql()
+                            .append("SELECT COUNT(*)")
+                            .append("FROM article")
+                            .append("WHERE SLEEP(?) = 0", 0.05)
+                            .selectLong();
+                    assertThat(count).isEqualTo(6);
+                });
+                threads[i].start();
+            }
+
+            for (Thread thread : threads) {
+                thread.join();
+            }
+
+            CoalescingStats stats = simpleDb.getCoalescingStats();
+            assertThat(stats.executions() + stats.coalesced()).isEqualTo(50);
+            assertThat(stats.coalesced()).isGreaterThan(0);
+        } finally {
+            simpleDb.setCoalescing(false);
+        }
+    }
+
+    @Test
+    @DisplayName("SELECT ROW coalesced hands every caller its own entity")
+    void selectRowCoalesced() throws InterruptedException {
+        simpleDb.setCoalescing(true);
+        try {
+            List<Article> articles = new CopyOnWriteArrayList<>();
+            Thread[] threads = new Thread[50];
+            for (int i = 0; i < threads.length; i++) {
+                threads[i] = new Thread(() -> {
+                    Article article = simpleDb.genSql()
+                            .append("SELECT * FROM article")
+                            .append("WHERE id = ? AND SLEEP(?) = 0", 1, 0.05)
+                            .selectRow(Article.class);
+                    articles.add(article);
+                    article.setTitle("changed by " + Thread.currentThread().getName());
+                });
+                threads[i].start();
+            }
+
+            for (Thread thread : threads) {
+                thread.join();
+            }
+
+            assertThat(articles).hasSize(50);
+            assertThat(articles.stream().map(System::identityHashCode).distinct().count()).isEqualTo(50);
+            assertThat(articles).allSatisfy(article -> assertThat(article.getId()).isEqualTo(1L));
+            CoalescingStats stats = simpleDb.getCoalescingStats();
+            assertThat(stats.executions() + stats.coalesced()).isEqualTo(50);
+            assertThat(stats.coalesced()).isGreaterThan(0);
+        } finally {
+            simpleDb.setCoalescing(false);
+        }
+    }
+
+    @Test
+    @DisplayName("SELECT coalesced only for arguments of the same type and value")
+    void selectCoalescedByArguments() {
+        simpleDb.setCoalescing(true, 1000);
+        try {
+            simpleDb.genSql().append("SELECT COUNT(*) FROM article WHERE isBlind = ?", true).selectLong();
+            simpleDb.genSql().append("SELECT COUNT(*) FROM article WHERE isBlind = ?", "true").selectLong();
+            simpleDb.genSql().append("SELECT COUNT(*) FROM article WHERE isBlind = ?", true).selectLong();
+            assertThat(simpleDb.genSql().append("SELECT COUNT(*) FROM article WHERE title = ?", "$1 \\ $").selectLong()).isZero();
+
+            CoalescingStats stats = simpleDb.getCoalescingStats();
+            assertThat(stats.executions()).isEqualTo(3);
+            assertThat(stats.coalesced()).isEqualTo(1);
+        } finally {
+            simpleDb.setCoalescing(false);
+        }
+    }
+
+    @Test
+    @DisplayName("SELECT coalesced still checks each caller's query budget")
+    void selectCoalescedBudget() {
+        simpleDb.setCoalescing(true, 1000);
+        try {
+            assertThat(simpleDb.genSql().append("SELECT COUNT(*) FROM article").selectLong()).isEqualTo(6);
+            try (QueryTracker tracker = QueryTracker.start(0, QueryTracker.BudgetPolicy.FAIL)) {
+                assertThatThrownBy(() -> simpleDb.genSql().append("SELECT COUNT(*) FROM article").selectLong())
+                        .isInstanceOf(QueryBudgetExceededException.class);
+            }
+            assertThat(simpleDb.genSql().append("SELECT COUNT(*) FROM article").selectLong()).isEqualTo(6);
+            assertThat(simpleDb.genSql().append("SELECT COUNT(*) FROM article").selectString()).isEqualTo("6");
+
+            CoalescingStats stats = simpleDb.getCoalescingStats();
+            assertThat(stats.executions()).isEqualTo(2);
+            assertThat(stats.coalesced()).isEqualTo(1);
+        } finally {
+            simpleDb.setCoalescing(false);
+        }
+    }
+
+    @Test
+    @DisplayName("COMPILED QUERY executed from many threads")
+    void compiledQuery() throws InterruptedException {
+        CompiledQuery<Article> articleById = simpleDb.compile(simpleDb.genSql()
+                .append("SELECT *")
+                .append("FROM article")
+                .append("WHERE id = ?"), Article.class, Long.class);
+        CompiledQuery<String> titlesFrom = simpleDb.compile(simpleDb.genSql()
+                .append("SELECT title")
+                .append("FROM article")
+                .append("WHERE id >= ? AND title != '?'")
+                .append("ORDER BY id ASC"), String.class, long.class);
+
+        Thread[] threads = new Thread[20];
+        for (int i = 0; i < threads.length; i++) {
+            final long id = i % 6 + 1;
+            threads[i] = new Thread(() -> {
+                Article article = articleById.selectRow(id);
+                assertThat(article.getId()).isEqualTo(id);
+                assertThat(article.getTitle()).isEqualTo("제목%d".formatted(id));
+            });
+            threads[i].start();
+        }
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertThat(titlesFrom.selectRows(5L)).containsExactly("제목5", "제목6");
+        // like Sql.selectRow(Class), a missing row maps to an empty entity
+        Article missing = articleById.selectRow(100L);
+        assertThat(missing.getId()).isZero();
+        assertThat(missing.getTitle()).isNull();
+        assertThatThrownBy(() -> articleById.selectRow("1"))
+                .isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> simpleDb.compile(simpleDb.genSql().append("SELECT * FROM article WHERE id = ?", 1), Article.class))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    @DisplayName("MULTI GET in chunks keeps input order")
+    void multiGet() {
+        MultiGet<Article> articlesByIds = simpleDb.genMultiGet(simpleDb.genSql()
+                .append("SELECT *")
+                .append("FROM article")
+                .append("WHERE id IN (?)"), Article.class, 2);
+        List<Long> ids = Arrays.asList(6L, 1L, 3L, 100L, 5L, 2L, 1L);
+
+        try (QueryTracker tracker = QueryTracker.start()) {
+            List<Article> articles = articlesByIds.selectRows(ids, Article::getId);
+
+            assertThat(articles).extracting(Article::getId).containsExactly(6L, 1L, 3L, 5L, 2L);
+            assertThat(tracker.getQueryCount()).isEqualTo(3);
+        }
+        assertThat(articlesByIds.selectRows(List.of(4L, 2L))).hasSize(2);
+        assertThat(articlesByIds.selectRows(List.of())).isEmpty();
+    }
+
+    @Test
+    @DisplayName("ROW STORE packs rows at least 3x smaller than entities")
+    void selectRowStore() {
+        simpleDb.run("""
+                INSERT INTO article (createdDate, modifiedDate, title, `body`)
+                WITH RECURSIVE seq (no) AS (SELECT 7 UNION ALL SELECT no + 1 FROM seq WHERE no < 1000)
+                SELECT NOW(), NOW(), CONCAT('제목', no), CONCAT('내용', no) FROM seq
+                """);
+        List<Article> articles = simpleDb.genSql()
+                .append("SELECT * FROM article ORDER BY id ASC")
+                .selectRows(Article.class);
+        RowStore rowStore = simpleDb.genSql()
+                .append("SELECT * FROM article ORDER BY id ASC")
+                .selectRowStore();
+
+        long articlesSize = GraphLayout.parseInstance(articles).totalSize();
+        long rowStoreSize = GraphLayout.parseInstance(rowStore).totalSize();
+        System.out.println("List<Article>: %d bytes, RowStore: %d bytes".formatted(articlesSize, rowStoreSize));
+        assertThat(rowStore.size()).isEqualTo(articles.size());
+        assertThat(rowStoreSize * 3).isLessThanOrEqualTo(articlesSize);
+
+        rowStore.filter(row -> !row.getBoolean("isBlind"));
+        rowStore.sort(Comparator.comparingLong((RowStore.Cursor row) -> row.getLong("id")).reversed());
+        assertThat(rowStore.size()).isEqualTo(997);
+
+        RowStore.Cursor row = rowStore.cursor();
+        assertThat(row.next()).isTrue();
+        assertThat(row.getLong("id")).isEqualTo(1000);
+        assertThat(row.getString("title")).isEqualTo("제목1000");
+        assertThat(row.getDatetime("createdDate")).isEqualTo(articles.get(999).getCreatedDate());
+
+        row.moveTo(rowStore.size() - 1);
+        assertThat(row.getLong("id")).isEqualTo(1);
+        assertThat(row.getString("body")).isEqualTo("내용1");
+    }
+
+    @Test
+    @DisplayName("PARTITIONS keep api queries fast while batch is saturated")
+    void partitions() throws InterruptedException {
+        // budget and partitions outlive the test, so they get their own SimpleDb
+        SimpleDb partitionedDb = new SimpleDb("localhost", "root", "", "simpleDb__test");
+        try {
+            partitionedDb.setConnectionBudget(20);
+            partitionedDb.addPartition("api", 2, 4, 1000);
+            partitionedDb.addPartition("batch", 2, 6, 200);
+
+            Thread[] threads = new Thread[6];
+            for (int i = 0; i < threads.length; i++) {
+                threads[i] = new Thread(() -> partitionedDb.genSql("batch").append("SELECT SLEEP(?)", 0.8).selectLong());
+                threads[i].start();
+            }
+            Thread.sleep(200);
+
+            assertThat(partitionedDb.getPoolStats("batch").activeConnections()).isEqualTo(6);
+            assertThatThrownBy(() -> partitionedDb.genSql("batch").append("SELECT 1").selectLong())
+                    .isInstanceOf(SQLRuntimeException.class);
+
+            long start = System.nanoTime();
+            assertThat(partitionedDb.genSql("api").append("SELECT 1").selectLong()).isEqualTo(1);
+            assertThat(System.nanoTime() - start).isLessThan(100_000_000L);
+
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            assertThatThrownBy(() -> partitionedDb.addPartition("reporting", 12, 12, 1000))
+                    .isInstanceOf(IllegalStateException.class);
+        } finally {
+            partitionedDb.close();
+        }
+    }
+
+    @Test
+    @DisplayName("PARTITIONS never open more connections than the budget")
+    void partitionWithinBudget() throws InterruptedException {
+        SimpleDb partitionedDb = new SimpleDb("localhost", "root", "", "simpleDb__test");
+        try {
+            // the default pool borrows all of the shared headroom
+            Thread[] threads = new Thread[10];
+            for (int i = 0; i < threads.length; i++) {
+                threads[i] = new Thread(() -> partitionedDb.genSql().append("SELECT SLEEP(?)", 0.5).selectLong());
+                threads[i].start();
+            }
+            Thread.sleep(200);
+
+            assertThat(partitionedDb.getPoolStats().activeConnections()).isEqualTo(10);
+            assertThatThrownBy(() -> partitionedDb.addPartition("api", 1, 2, 1000))
+                    .isInstanceOf(IllegalStateException.class);
+
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            // idle headroom is handed back before the partition opens its guaranteed connection
+            partitionedDb.addPartition("api", 1, 2, 1000);
+            assertThat(partitionedDb.getPoolStats().activeConnections() + partitionedDb.getPoolStats("api").activeConnections())
+                    .isLessThanOrEqualTo(10);
+        } finally {
+            partitionedDb.close();
+        }
+    }
+
+    @Test
+    @DisplayName("LOGGER suppresses duplicate errors and redacts query parameters")
+    void logger() {
+        List<LogRecord> records = new CopyOnWriteArrayList<>();
+        SimpleDbLogger.setSink(records::add);
+        try {
+            for (int i = 0; i < 20; i++) {
+                assertThatThrownBy(() -> simpleDb.genSql().append("SELECT * FROM no_such_table").selectLong())
+                        .isInstanceOf(SQLRuntimeException.class);
+            }
+            // the driver echoes each duplicate id, the records must neither differ by it nor carry it
+            for (long id = 1; id <= 6; id++) {
+                long duplicateId = id;
+                assertThatThrownBy(() -> simpleDb.genSql()
+                        .append("INSERT INTO article SET id = ?, createdDate = NOW(), modifiedDate = NOW(), title = '', body = ''", duplicateId)
+                        .insert())
+                        .isInstanceOf(SQLRuntimeException.class);
+            }
+            simpleDb.genSql().append("SELECT id FROM article WHERE title = ?", "제목 secret").selectLong();
+            assertThat(SimpleDbLogger.flush(1000)).isTrue();
+
+            List<LogRecord> exceptions = records.stream().filter(record -> record.event().equals("sql.exception")).toList();
+            assertThat(exceptions).hasSize(2);
+            assertThat(exceptions).allSatisfy(record -> {
+                assertThat(record.message()).doesNotContain("Duplicate entry");
+                for (Throwable t = record.error(); t != null; t = t.getCause())
+                    assertThat(String.valueOf(t.getMessage())).doesNotContain("Duplicate entry");
+            });
+            assertThat(records).filteredOn(record -> record.event().equals("sql.query"))
+                    .extracting(LogRecord::message)
+                    .contains("SELECT id FROM article WHERE title = ?")
+                    .noneMatch(message -> message.contains("secret"));
+        } finally {
+            SimpleDbLogger.setSink(SimpleDbLogger.CONSOLE);
+        }
+    }
+
+    @Test
+    @DisplayName("SELECT retries on a fresh connection after pooled connections are killed")
+    void selectAfterConnectionsKilled() {
+        simpleDb.run("CREATE DATABASE IF NOT EXISTS simpleDb__test_failover");
+        SimpleDb failoverDb = new SimpleDb("localhost", "root", "", "simpleDb__test_failover");
+        try {
+            assertThat(failoverDb.genSql().append("SELECT 1").selectLong()).isEqualTo(1);
+
+            killConnections("simpleDb__test_failover");
+            assertThat(failoverDb.genSql().append("SELECT 1").selectLong()).isEqualTo(1);
+
+            killConnections("simpleDb__test_failover");
+            assertThatThrownBy(() -> failoverDb.genSql().append("DO 1").update())
+                    .isInstanceOf(ConnectionFailureException.class);
+            assertThat(failoverDb.genSql().append("SELECT 1").selectLong()).isEqualTo(1);
+        } finally {
+            failoverDb.close();
+        }
+    }
+
+    private void killConnections(String database) {
+        simpleDb.genSql()
+                .append("SELECT ID FROM information_schema.PROCESSLIST")
+                .append("WHERE DB = ?", database)
+                .selectLongs()
+                .forEach(id -> simpleDb.run("KILL ?", id));
+    }
 }
\ No newline at end of file